@@ -1,16 +1,101 @@
 #include <SoftwareSerial.h>
 #include <NewPing.h>
 
-#define BluetoothPacketMaxSize 24
+#define BluetoothPacketMaxSize 24 // longest ASCII command line
+
+// Uncomment when the BLE module is wired to pins 0/1 (hardware UART) instead of 8/9. Module has
+// to be switched to BluetoothBaud first (AT+BAUD4 on HM-10) and unplugged while uploading.
+// SoftwareSerial keeps interrupts off while sending, so bytes arriving meanwhile are lost
+// and telemetry at 9600 baud takes most of the link.
+// #define BluetoothHardwareSerial
+
+// Binary protocol, see MotionCodec.java on the phone side:
+// [sync][version][opcode][sequence][payload length][payload...][crc8]
+#define ProtocolSync 0xAA
+#define ProtocolVersion 1
+#define FrameHeaderSize 4 // version, opcode, sequence, length (sync excluded)
+#define MaxRouteSteps 8
+#define StepPayloadSize 4 // direction, distance int16, speed
+#define FrameMaxPayload (1 + MaxRouteSteps * StepPayloadSize)
+
+#define OpMove 0x01
+#define OpStop 0x02
+#define OpRoute 0x03
+#define OpSonar 0x04
+#define OpTelemetry 0x05
+#define OpAck 0x06
+
+// ACK frames echo sequence of a MOVE/ROUTE/STOP with robot's millis() at each of its stages,
+// the app measures where the time goes (LatencyMetrics.java).
+#define AckReceived 1
+#define AckStarted 2
+#define AckFinished 3
+#define AckPayloadSize 6
+
+// Sent after every step of a binary command: [route step][distance error mm int16]
+// [heading error deg int16], errors are target minus what odometry measured.
+#define OpStepResult 0x07
+#define StepResultPayloadSize 5
+
+// Limits of the motion profile: [max acceleration cm/s^2 uint16][max speed 0-255].
+#define OpLimits 0x08
+#define LimitsPayloadSize 3
+
+#define TelemetryPayloadSize 12
+#define MaxTelemetryRate 50 // Hz
+
+// Period of the motion state machine, bluetooth is polled on every loop() pass.
+#define TickPeriod 10 // ms
+#define ObstacleStopDistance 15 // cm
 
 #define UltrasonicTrigger 10
 #define UltrasonicEcho 11
+#define MaxSonarDistance 200 // cm, farther echoes (and no echo at all) count as free way
+#define SonarWindow 5 // samples kept for median filter
+#define MinSonarPeriod 30 // ms, echo of previous ping has to fade away
 
 #define BluetoothRX 8
 #define BluetoothTX 9
-
+#ifdef BluetoothHardwareSerial
+#define BluetoothBaud 115200
+#else
+#define BluetoothBaud 9600
+#endif
+
+// Received commands wait in a ring buffer until loop() runs them, one per pass.
+#define CommandQueueSize 8 // power of two
+#define FrameTimeout 250   // ms, frame not complete by then lost some bytes, drop it
+#define OpVersionQuery 0x00 // ASCII "V", never sent as a frame
+
+// Slotted encoder discs on both wheels, single channel, direction is the commanded one.
+#define LeftEncoderPin 2  // INT0
+#define RightEncoderPin 3 // INT1
+#define EncoderSlots 20   // ticks per wheel revolution
+#define WheelDiameter 6.5 // cm
+#define CmPerTick (M_PI * WheelDiameter / EncoderSlots)
+#define TurnRadius 9.5    // cm, half of the track, robot turns in place
+
+// Wheel speed control. Position of each wheel follows a setpoint moving at the wanted speed,
+// PID corrects the PWM found by feed forward, so battery level and floor do not matter.
+#define ControlPeriod 50    // ms
+#define MaxWheelSpeed 16.0  // cm/s at full PWM, only for feed forward and timeouts
+#define PidKp 12.0          // PWM per cm of position error
+#define PidKi 4.0
+#define PidKd 1.0
+#define PidIntegralLimit 20.0
+#define StallTimeout 1000   // ms on top of twice the expected time, then step is given up
+
+// Trapezoidal motion profile: wheels accelerate and brake at maxAcceleration instead of
+// jumping to full PWM, which made them slip and browned out the BLE module.
+#define DefaultAcceleration 30.0 // cm/s^2, app can change it with OpLimits
+#define MinProfileSpeed 2.0      // cm/s, setpoint never stops short of the target
+
+#ifdef BluetoothHardwareSerial
+HardwareSerial& bluetooth = Serial;
+#else
 SoftwareSerial bluetooth(BluetoothRX, BluetoothTX);
-NewPing ultrasonic(UltrasonicTrigger, UltrasonicEcho);
+#endif
+NewPing ultrasonic(UltrasonicTrigger, UltrasonicEcho, MaxSonarDistance);
 
 struct MoveParams
 {
@@ -19,57 +104,38 @@ struct MoveParams
     int speed;
 };
 
-class Sliced
-{
-public:
-    Sliced(int expected)
-    {
-        size = expected;
-        data = new char[size * 5];
-        block = nullptr;
-    }
-
-    char* index(int x, int y)
-    {
-        return &data[x * 5 + y];
-    }
-
-    char* memoryBlock(int x)
-    {
-        if (block != nullptr) { delete block; block = nullptr; }
-        block = new char[size];
-        memcpy(block, index(x, 0), size);
-        return block;
-    }
-
-    ~Sliced()
-    {
-        if (block != nullptr) { delete block; block = nullptr; }
-        delete[] data;
-    }
+// Every step consists of optional turn followed by driving straight.
+enum MotionPhase { Idle, Turning, Driving };
 
-private:
-    int size;
-    char* data;
-    char* block;
+struct MotionState
+{
+    MotionPhase phase;
+    int turnDegrees; // heading change once turning phase ends
+    unsigned long phaseStart;
+    unsigned long phaseDuration; // ms, expected; phase is given up if it takes much longer
+    float target; // cm of travel (arc length when turning) measured by the encoders
+    int turnMeasured; // degrees the turn really took, from odometry
+    MoveParams params;
 };
 
-Sliced sliceMessage(char str[], int expectedCount)
+struct Frame
 {
-    Sliced data(expectedCount);
+    uint8_t opcode;
+    uint8_t sequence;
+    uint8_t length;
+    uint8_t payload[FrameMaxPayload];
+};
 
-    char divider[] = ";";
-    char* buffer;
-    buffer = strtok(str, divider);
-    int counter = 0;
-    while (buffer != NULL)
-    {
-        strncpy(data.index(counter++, 0), buffer, 5);
-        buffer = strtok(NULL, divider);
-    }
+// ASCII commands are turned into frames too, they just do not get ACKs.
+struct Command
+{
+    Frame frame;
+    bool ascii;
+    unsigned long receivedAt;
+};
 
-    return data;
-}
+// Incremental framer, bytes are fed one at a time as they arrive, nothing waits for the rest.
+enum RxState { RxIdle, RxHeader, RxPayload, RxCrc, RxLine };
 
 class Motor
 {
@@ -98,6 +164,12 @@ public:
     void rotate(unsigned char pwm)
     {
         analogWrite(speedPin, pwm);
+        currentPwm = pwm;
+    }
+
+    unsigned char pwm() const
+    {
+        return currentPwm;
     }
 
 private:
@@ -105,170 +177,785 @@ private:
     int speedPin;
     int input1Pin;
     int input2Pin;
+    unsigned char currentPwm = 0;
 };
 
 Motor leftMotor, rightMotor;
 
+class Pid
+{
+public:
+
+    void reset()
+    {
+        integral = 0;
+        lastError = 0;
+    }
+
+    float update(float error, float dt)
+    {
+        integral = constrain(integral + error * dt, -PidIntegralLimit, PidIntegralLimit);
+        float derivative = (error - lastError) / dt;
+        lastError = error;
+        return PidKp * error + PidKi * integral + PidKd * derivative;
+    }
+
+private:
+
+    float integral = 0;
+    float lastError = 0;
+};
+
+// Motor with its encoder: odometry of the current segment and closed-loop control that
+// makes the wheel follow position and velocity given by the motion profile.
+class Wheel
+{
+public:
+
+    Wheel(Motor* motor) : motor(motor) {}
+
+    // Wheel starts from standstill.
+    void start()
+    {
+        travelled = 0;
+        pid.reset();
+        active = true;
+    }
+
+    // Next segment is blended with the previous one, wheel keeps going.
+    void rebase(float distance)
+    {
+        travelled -= distance;
+    }
+
+    void stop()
+    {
+        active = false;
+        motor->rotate(0);
+    }
+
+    void addTicks(unsigned int ticks)
+    {
+        travelled += ticks * CmPerTick;
+    }
+
+    void control(float setpoint, float velocity, float dt)
+    {
+        if (!active) return;
+        float pwm = velocity * 255 / MaxWheelSpeed + pid.update(setpoint - travelled, dt);
+        motor->rotate((unsigned char)constrain(pwm, 0, 255));
+    }
+
+    float distance() const
+    {
+        return travelled;
+    }
+
+private:
+
+    Motor* motor;
+    Pid pid;
+    bool active = false;
+    float travelled = 0; // cm since start()
+};
+
+Wheel leftWheel(&leftMotor), rightWheel(&rightMotor);
+
+// Counted by encoder interrupts, collected every tick.
+volatile unsigned int leftTicks = 0;
+volatile unsigned int rightTicks = 0;
+unsigned long lastControl = 0;
+
+// Setpoint shared by both wheels, they run the same distance in every segment. Consecutive
+// straight segments are blended, robot slows down only before a turn, where one of the
+// wheels has to reverse, and at the end of the route.
+struct Profile
+{
+    float distance;     // cm, length of the segment
+    float position;     // cm, where the wheels should be now
+    float velocity;     // cm/s
+    float cruise;       // cm/s
+    float exitVelocity; // cm/s, speed the next segment takes over
+};
+
+Profile profile = { 0, 0, 0, 0, 0 };
+float maxAcceleration = DefaultAcceleration;
+unsigned char maxSpeed = 255;
+
+// Steps of the route being executed, loop() runs them one after another.
+MoveParams route[MaxRouteSteps];
+uint8_t routeLength = 0;
+uint8_t routeStep = 0;
+
+MotionState motion = { Idle, 0, 0, 0, 0, 0, { 0, 0, 0 } };
+unsigned long lastTick = 0;
+int heading = 0; // degrees, estimated from finished turns
+int routeSequence = -1; // sequence of the binary command being run, -1 for ASCII ones
+
+// Telemetry stream, off until the app asks for it. Keep in mind that SoftwareSerial
+// sends byte by byte with interrupts off, at 9600 baud one frame takes ~19 ms.
+unsigned long telemetryPeriod = 0; // ms, 0 - off
+unsigned long lastTelemetry = 0;
+unsigned int maxLoopMicros = 0;
+uint8_t txSequence = 0;
+
+// Statically allocated, single producer (framer) single consumer (loop), indices are bytes
+// so they are read and written atomically and the framer may run from a serial interrupt.
+Command commands[CommandQueueSize];
+volatile uint8_t commandHead = 0; // next free slot
+volatile uint8_t commandTail = 0; // next command to run
+uint8_t droppedCommands = 0;
+
+RxState rxState = RxIdle;
+unsigned long rxStart = 0;
+uint8_t rxCount = 0;
+uint8_t rxHeader[FrameHeaderSize];
+Frame rxFrame;
+char rxLine[BluetoothPacketMaxSize];
+
+// Ultrasonic pings are triggered from loop() and their echo is timed by NewPing's
+// timer interrupt, so reading the distance never blocks the motion state machine.
+volatile unsigned int echoDistance = 0;
+volatile bool echoReceived = false;
+bool pingPending = false;
+unsigned int sonarSamples[SonarWindow];
+uint8_t sonarIndex = 0;
+unsigned int sonarFiltered = MaxSonarDistance;
+unsigned long sonarPeriod = 50; // ms, can be changed by the app
+unsigned long lastPing = 0;
+
 void setup()
 {
     // setup bluetooth communication
-    bluetooth.begin(9600);
+    bluetooth.begin(BluetoothBaud);
 
     // setup motors
     leftMotor = Motor(5, 4, 7);
     rightMotor = Motor(6, 13, 12);
+
+    for (uint8_t i = 0; i < SonarWindow; i++) sonarSamples[i] = MaxSonarDistance;
+
+    pinMode(LeftEncoderPin, INPUT_PULLUP);
+    pinMode(RightEncoderPin, INPUT_PULLUP);
+    attachInterrupt(digitalPinToInterrupt(LeftEncoderPin), leftEncoderTick, RISING);
+    attachInterrupt(digitalPinToInterrupt(RightEncoderPin), rightEncoderTick, RISING);
 }
 
 void loop()
 {
-    // check if there is any incoming command from mobile app
-    if (bluetooth.available() > 0)
+    unsigned long loopStart = micros();
+
+    // Nothing here blocks, commands are framed as their bytes come, so stop or a new
+    // route takes effect within one tick, even in the middle of a move.
+    pollBluetooth();
+
+    unsigned long now = millis();
+    updateSonar(now);
+
+    if (now - lastTick >= TickPeriod)
     {
-        // reading whole message that mobile app sent
-        // app sends message in following order: [type-letter][value];[value];[value]...
-        char typeLetter = bluetooth.read();
+        lastTick = now;
+        updateMotion(now);
+    }
+
+    if (telemetryPeriod > 0 && now - lastTelemetry >= telemetryPeriod)
+    {
+        lastTelemetry = now;
+        sendTelemetry(now);
+        maxLoopMicros = 0;
+    }
 
-        char message[BluetoothPacketMaxSize];
-        memset(message, 0, BluetoothPacketMaxSize);
-        size_t readCount = bluetooth.readBytesUntil('\n', message, BluetoothPacketMaxSize);
+    unsigned long loopTime = micros() - loopStart;
+    if (loopTime > maxLoopMicros) maxLoopMicros = min(loopTime, 0xFFFFUL);
+}
 
-        if (typeLetter == 'M') // M - move
-        {
-            // get params from message
-            MoveParams params = parseMoveParams(message);
+void pollBluetooth()
+{
+    // app sends either binary frames (starting with ProtocolSync) or, in ASCII mode,
+    // messages in following order: [type-letter][value];[value];[value]...
+    while (bluetooth.available() > 0) receiveByte(bluetooth.read());
+    if (rxState != RxIdle && millis() - rxStart > FrameTimeout) rxState = RxIdle;
 
-            switch (params.direction)
+    // One command per pass, answering it takes a while and the port is drained in between.
+    if (commandTail != commandHead)
+    {
+        handleCommand(commands[commandTail % CommandQueueSize]);
+        commandTail++;
+    }
+}
+
+void receiveByte(uint8_t c)
+{
+    switch (rxState)
+    {
+        case RxIdle:
+            rxStart = millis();
+            rxCount = 0;
+            if (c == ProtocolSync) rxState = RxHeader;
+            else if (c != '\r' && c != '\n') { rxLine[rxCount++] = c; rxState = RxLine; }
+            break;
+
+        case RxHeader:
+            rxHeader[rxCount++] = c;
+            if (rxCount < FrameHeaderSize) break;
+            if (rxHeader[0] != ProtocolVersion || rxHeader[3] > FrameMaxPayload) { rxState = RxIdle; break; }
+            rxFrame.opcode = rxHeader[1];
+            rxFrame.sequence = rxHeader[2];
+            rxFrame.length = rxHeader[3];
+            rxCount = 0;
+            rxState = rxFrame.length > 0 ? RxPayload : RxCrc;
+            break;
+
+        case RxPayload:
+            rxFrame.payload[rxCount++] = c;
+            if (rxCount == rxFrame.length) rxState = RxCrc;
+            break;
+
+        case RxCrc:
+            if (crc8(rxFrame.payload, rxFrame.length, crc8(rxHeader, FrameHeaderSize, 0)) == c)
+                queueCommand(false);
+            rxState = RxIdle;
+            break;
+
+        case RxLine:
+            if (c == '\n')
             {
-                case 'T': // T - towards
-                    bluetooth.print("Towards ");
-                    bluetooth.println(params.distance);
-                    goTowards(params.distance, params.speed);
-                    break;
-
-                case 'B': // B - backwards
-                    bluetooth.print("Back ");
-                    bluetooth.println(params.distance);
-                    goBackwards(params.distance, params.speed);
-                    break;
-
-                case 'R': // R - rightwards
-                    bluetooth.print("Right ");
-                    bluetooth.println(params.distance);
-                    goRightwards(params.distance, params.speed);
-                    break;
-
-                case 'L': // L - leftwards
-                    bluetooth.print("Left");
-                    bluetooth.println(params.distance);
-                    goLeftwards(params.distance, params.speed);
-                    break;
+                rxLine[rxCount] = 0;
+                if (parseLine(rxLine)) queueCommand(true);
+                rxState = RxIdle;
             }
+            else if (rxCount < BluetoothPacketMaxSize - 1)
+            {
+                rxLine[rxCount++] = c;
+            }
+            break;
+    }
+}
 
-            // Set motors speed to 0 = stop them
-            move(0);
+// rxFrame goes to the ring buffer, if it is full the command is dropped and counted.
+void queueCommand(bool ascii)
+{
+    if ((uint8_t)(commandHead - commandTail) == CommandQueueSize)
+    {
+        droppedCommands++;
+        return;
+    }
+    Command& command = commands[commandHead % CommandQueueSize];
+    command.frame = rxFrame;
+    command.ascii = ascii;
+    command.receivedAt = millis();
+    commandHead++;
+}
+
+// Turns ASCII command into rxFrame, returns false for lines that are not commands.
+bool parseLine(const char* line)
+{
+    rxFrame.sequence = 0;
+    rxFrame.length = 0;
 
-            bluetooth.println("Finish");
+    switch (line[0])
+    {
+        case 'M': // M<direction>;<distance>;<speed>; - move
+        {
+            const char* distance = strchr(line, ';');
+            const char* speed = distance != NULL ? strchr(distance + 1, ';') : NULL;
+            if (line[1] == 0 || speed == NULL) return false;
+            int value = atoi(distance + 1);
+            rxFrame.opcode = OpMove;
+            rxFrame.length = StepPayloadSize;
+            rxFrame.payload[0] = line[1];
+            rxFrame.payload[1] = (uint8_t)value;
+            rxFrame.payload[2] = (uint8_t)(value >> 8);
+            rxFrame.payload[3] = (uint8_t)atoi(speed + 1);
+            return true;
         }
+
+        case 'S': // S - stop immediately
+            rxFrame.opcode = OpStop;
+            return true;
+
+        case 'V': // V - app asks which protocol we speak
+            rxFrame.opcode = OpVersionQuery;
+            return true;
     }
+    return false;
+}
+
+// CRC-8, polynomial 0x07, same as MotionCodec.crc8
+uint8_t crc8(const uint8_t* data, size_t length, uint8_t crc)
+{
+    for (size_t i = 0; i < length; i++)
+    {
+        crc ^= data[i];
+        for (uint8_t bit = 0; bit < 8; bit++)
+            crc = (crc & 0x80) ? (uint8_t)((crc << 1) ^ 0x07) : (uint8_t)(crc << 1);
+    }
+    return crc;
+}
 
-    delay(10);
+void sendFrame(uint8_t opcode, const uint8_t* payload, uint8_t length)
+{
+    uint8_t header[FrameHeaderSize] = { ProtocolVersion, opcode, txSequence++, length };
+    uint8_t crc = crc8(payload, length, crc8(header, FrameHeaderSize, 0));
+
+    bluetooth.write(ProtocolSync);
+    bluetooth.write(header, FrameHeaderSize);
+    bluetooth.write(payload, length);
+    bluetooth.write(crc);
 }
 
-MoveParams parseMoveParams(char message[])
+void sendAck(uint8_t sequence, uint8_t event, unsigned long time)
 {
-    Sliced data = sliceMessage(message, 3);
+    uint8_t payload[AckPayloadSize] = { sequence, event,
+        (uint8_t)time, (uint8_t)(time >> 8), (uint8_t)(time >> 16), (uint8_t)(time >> 24) };
+    sendFrame(OpAck, payload, AckPayloadSize);
+}
 
-    MoveParams retObj;
-    retObj.direction = *(data.index(0, 0));
-    retObj.distance =  atoi(data.memoryBlock(1));
-    retObj.speed =     atoi(data.memoryBlock(2));
+// Layout must match Telemetry.java on the phone side.
+void sendTelemetry(unsigned long now)
+{
+    unsigned int stepDistance = motion.phase == Driving ? (unsigned int)travelledDistance() : 0;
+
+    uint8_t payload[TelemetryPayloadSize];
+    payload[0] = stepDistance & 0xFF;
+    payload[1] = stepDistance >> 8;
+    payload[2] = heading & 0xFF;
+    payload[3] = (heading >> 8) & 0xFF;
+    payload[4] = sonarFiltered & 0xFF;
+    payload[5] = sonarFiltered >> 8;
+    payload[6] = leftMotor.pwm();
+    payload[7] = rightMotor.pwm();
+    payload[8] = maxLoopMicros & 0xFF;
+    payload[9] = maxLoopMicros >> 8;
+    payload[10] = routeStep;
+    payload[11] = motion.phase;
+
+    sendFrame(OpTelemetry, payload, TelemetryPayloadSize);
+}
 
-    return retObj;
+// One step of MOVE or ROUTE payload: [direction char][distance int16 LE][speed uint8].
+MoveParams decodeStep(const uint8_t* payload)
+{
+    MoveParams params;
+    params.direction = (char)payload[0];
+    params.distance = (int16_t)(payload[1] | (payload[2] << 8));
+    params.speed = payload[3];
+    return params;
 }
 
-// *****************************************************************************
-// In this part we will have to calculate time needed to complete given movement
-// Robot travels approx 16 cm/s.
-// -----------------------------------------------------------------------------
+// Speed 0 would never get the robot anywhere, the whole command is refused then.
+bool validStep(const uint8_t* payload)
+{
+    return payload[3] > 0;
+}
+
+void handleCommand(const Command& command)
+{
+    const Frame& frame = command.frame;
+    bool ack = !command.ascii; // ASCII clients would not understand ACK frames
+
+    switch (frame.opcode)
+    {
+        case OpVersionQuery:
+            bluetooth.print('V');
+            bluetooth.println(ProtocolVersion);
+            break;
+
+        case OpMove:
+            if (frame.length < StepPayloadSize || !validStep(frame.payload)) return;
+            if (ack) sendAck(frame.sequence, AckReceived, command.receivedAt);
+            route[0] = decodeStep(frame.payload);
+            routeSequence = ack ? frame.sequence : -1;
+            startRoute(1);
+            break;
+
+        case OpStop:
+            if (ack) sendAck(frame.sequence, AckReceived, command.receivedAt);
+            stopMotion();
+            if (ack) sendAck(frame.sequence, AckFinished, millis());
+            break;
+
+        case OpSonar: // change sampling period and report current distance
+            if (frame.length >= 1) sonarPeriod = max((unsigned long)frame.payload[0], (unsigned long)MinSonarPeriod);
+            bluetooth.print("Sonar ");
+            bluetooth.println(sonarFiltered);
+            break;
+
+        case OpTelemetry: // payload is rate in Hz, 0 turns telemetry off
+        {
+            uint8_t rate = frame.length >= 1 ? min(frame.payload[0], (uint8_t)MaxTelemetryRate) : 0;
+            telemetryPeriod = rate > 0 ? 1000 / rate : 0;
+            break;
+        }
+
+        case OpLimits: // takes effect from the next segment
+        {
+            if (frame.length < LimitsPayloadSize) return;
+            unsigned int acceleration = frame.payload[0] | (frame.payload[1] << 8);
+            maxAcceleration = acceleration > 0 ? acceleration : DefaultAcceleration;
+            maxSpeed = frame.payload[2] > 0 ? frame.payload[2] : 255;
+            break;
+        }
+
+        case OpRoute:
+        {
+            uint8_t count = frame.payload[0];
+            if (count == 0 || count > MaxRouteSteps || frame.length < 1 + count * StepPayloadSize) return;
+            for (uint8_t i = 0; i < count; i++)
+                if (!validStep(&frame.payload[1 + i * StepPayloadSize])) return;
+            if (ack) sendAck(frame.sequence, AckReceived, command.receivedAt);
+            for (uint8_t i = 0; i < count; i++)
+                route[i] = decodeStep(&frame.payload[1 + i * StepPayloadSize]);
+            routeSequence = ack ? frame.sequence : -1;
+            startRoute(count);
+            break;
+        }
+    }
+}
+
+// New route replaces whatever was left from the previous one, also the step in progress.
+void startRoute(uint8_t length)
+{
+    routeLength = length;
+    routeStep = 0;
+    beginStep(route[routeStep++], false);
+    if (routeSequence >= 0 && motion.phase != Idle) sendAck(routeSequence, AckStarted, millis());
+}
 
-// returns true if any obstacle is at least 'distance' cm from the Mobi's face
-bool obstacleWithin(int distance)
+void stopMotion()
 {
-    return ultrasonic.ping_cm() <= distance;
+    // Set motors speed to 0 = stop them, no ramp, stop means stop
+    stopWheels();
+    motion.phase = Idle;
+    routeLength = routeStep = 0;
+    routeSequence = -1;
+
+    bluetooth.println("Stopped");
+}
+
+// 'continued' - step follows the previous one of the same route, not a step that was cut short.
+void beginStep(const MoveParams& params, bool continued)
+{
+    motion.params = params;
+    motion.turnDegrees = motion.turnMeasured = 0;
+
+    if (routeLength > 1)
+    {
+        bluetooth.print("Step ");
+        bluetooth.print(routeStep);
+        bluetooth.print('/');
+        bluetooth.println(routeLength);
+    }
+
+    switch (params.direction)
+    {
+        case 'T': // T - towards
+            bluetooth.print("Towards ");
+            bluetooth.println(params.distance);
+            startDriving(millis(), continued);
+            return;
+
+        case 'B': // B - backwards, turn around
+            bluetooth.print("Back ");
+            bluetooth.println(params.distance);
+            motion.turnDegrees = 180;
+            rightMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
+            leftMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
+            startTurning(M_PI, params.speed);
+            return;
+
+        case 'R': // R - rightwards
+            bluetooth.print("Right ");
+            bluetooth.println(params.distance);
+            motion.turnDegrees = -90;
+            rightMotor.setRotatingDirection(Motor::DIR::COUNTERCLOCKWISE);
+            leftMotor.setRotatingDirection(Motor::DIR::COUNTERCLOCKWISE);
+            startTurning(HALF_PI, params.speed);
+            return;
+
+        case 'L': // L - leftwards
+            bluetooth.print("Left ");
+            bluetooth.println(params.distance);
+            motion.turnDegrees = 90;
+            rightMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
+            leftMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
+            startTurning(HALF_PI, params.speed);
+            return;
+    }
+
+    // unknown direction, skip the step
+    finishStep();
 }
 
-void goTowards(long distance, unsigned char speed)
+void startTurning(float angle, unsigned char speed)
 {
+    motion.phase = Turning;
+    motion.phaseStart = millis();
+    motion.phaseDuration = (timeRobotNeedsToTurn(angle, speed) + rampTime(speed)) * 1000;
+    // arc each wheel runs when turning in place, robot stops before driving on
+    startSegment(angle * TurnRadius, speed, false, 0);
+}
+
+void startDriving(unsigned long now, bool continued)
+{
+    // Straight after straight goes on without slowing down, the wheels keep their direction.
+    bool blend = motion.phase == Driving && profile.velocity > 0;
+    // Next step of the route counts what was run past the end of the previous one, a new
+    // route replacing a drive counts from where the wheels are now.
+    if (blend && !continued) motion.target = travelledDistance();
     rightMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
     leftMotor.setRotatingDirection(Motor::DIR::COUNTERCLOCKWISE);
 
-    move(speed);
+    float exitVelocity = 0;
+    if (routeStep < routeLength && route[routeStep].direction == 'T')
+        exitVelocity = cruiseVelocity(route[routeStep].speed);
 
-    float seconds = timeRobotNeedsToTravel(distance, speed);
+    motion.phase = Driving;
+    motion.phaseStart = now;
+    motion.phaseDuration = (timeRobotNeedsToTravel(motion.params.distance, motion.params.speed)
+        + rampTime(motion.params.speed)) * 1000;
+    startSegment(motion.params.distance, motion.params.speed, blend, exitVelocity);
+}
 
-    // controlling distance to nearest object to the front of the robot
-    // during the moving time
-    long startTime = millis();
-    while (((millis() - startTime) >= (seconds * 1000)) && !obstacleWithin(15))
-    { delay(10); }
+void startSegment(float distance, unsigned char speed, bool blend, float exitVelocity)
+{
+    if (blend)
+    {
+        // distance run past the end of the previous segment counts to this one
+        leftWheel.rebase(motion.target);
+        rightWheel.rebase(motion.target);
+    }
+    else
+    {
+        profile.velocity = 0;
+        leftWheel.start();
+        rightWheel.start();
+        lastControl = millis();
+    }
+
+    motion.target = distance;
+    profile.distance = distance;
+    profile.position = 0;
+    profile.cruise = cruiseVelocity(speed);
+    profile.exitVelocity = min(exitVelocity, profile.cruise);
 }
 
-void goBackwards(long distance, unsigned char speed)
+// One control period of the trapezoid: accelerate towards cruise speed until it is time
+// to brake to the exit velocity. Segment blended into from a faster one slows down to its
+// cruise speed first, not below it.
+void advanceProfile(float dt)
 {
-    rightMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
-    leftMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
+    float remaining = profile.distance - profile.position;
+    float braking = (sq(profile.velocity) - sq(profile.exitVelocity)) / (2 * maxAcceleration);
 
-    move(speed);
+    if (remaining <= braking)
+        profile.velocity = max(profile.velocity - maxAcceleration * dt, max(profile.exitVelocity, (float)MinProfileSpeed));
+    else if (profile.velocity > profile.cruise)
+        profile.velocity = max(profile.velocity - maxAcceleration * dt, profile.cruise);
+    else
+        profile.velocity = min(profile.velocity + maxAcceleration * dt, profile.cruise);
 
-    float seconds = timeRobotNeedsToTurn(M_PI, speed);
-    delay(seconds * 1000);
+    profile.position = min(profile.position + profile.velocity * dt, profile.distance);
+}
 
-    goTowards(distance, speed);
+float cruiseVelocity(unsigned char speed)
+{
+    return MaxWheelSpeed * min(speed, maxSpeed) / 255.f;
 }
 
-void goRightwards(long distance, unsigned char speed)
+// Extra time accelerating and braking take compared to running at cruise speed all along.
+float rampTime(unsigned char speed)
 {
-    // turn robot to the right and go straight
-    rightMotor.setRotatingDirection(Motor::DIR::COUNTERCLOCKWISE);
-    leftMotor.setRotatingDirection(Motor::DIR::COUNTERCLOCKWISE);
+    return cruiseVelocity(speed) / maxAcceleration;
+}
 
-    move(speed);
+// Single tick of the motion state machine, called every TickPeriod.
+void updateMotion(unsigned long now)
+{
+    noInterrupts();
+    unsigned int left = leftTicks, right = rightTicks;
+    leftTicks = rightTicks = 0;
+    interrupts();
+    leftWheel.addTicks(left);
+    rightWheel.addTicks(right);
+
+    if (now - lastControl >= ControlPeriod)
+    {
+        float dt = (now - lastControl) / 1000.f;
+        lastControl = now;
+        if (motion.phase != Idle) advanceProfile(dt);
+        leftWheel.control(profile.position, profile.velocity, dt);
+        rightWheel.control(profile.position, profile.velocity, dt);
+    }
+
+    // Phases end on distance measured by the encoders, time is only a guard against
+    // a stalled wheel or an encoder that came loose.
+    unsigned long elapsed = now - motion.phaseStart;
+    bool stalled = elapsed >= 2 * motion.phaseDuration + StallTimeout;
 
-    float seconds = timeRobotNeedsToTurn(HALF_PI, speed);
-    delay(seconds * 1000);
+    switch (motion.phase)
+    {
+        case Idle:
+            break;
+
+        case Turning:
+            if (travelledDistance() >= motion.target || stalled)
+            {
+                float turned = travelledDistance() / TurnRadius * RAD_TO_DEG;
+                motion.turnMeasured = motion.turnDegrees < 0 ? -(int)(turned + 0.5f) : (int)(turned + 0.5f);
+                heading += motion.turnMeasured;
+                if (heading > 180) heading -= 360;
+                if (heading <= -180) heading += 360;
+                startDriving(now, false);
+            }
+            break;
 
-    goTowards(distance, speed);
+        case Driving:
+            // controlling distance to nearest object to the front of the robot
+            // during the moving time
+            if (obstacleWithin(ObstacleStopDistance))
+            {
+                bluetooth.print("Obstacle ");
+                bluetooth.println(sonarFiltered);
+                stopWheels(); // no blending into whatever is ahead
+                finishStep();
+            }
+            else if (travelledDistance() >= motion.target || stalled)
+            {
+                finishStep();
+            }
+            break;
+    }
 }
 
-void goLeftwards(long distance, unsigned char speed)
+// Average of both wheels since the phase started, cm.
+float travelledDistance()
 {
-    // turn robot to the left and go straight
-    rightMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
-    leftMotor.setRotatingDirection(Motor::DIR::CLOCKWISE);
+    return (leftWheel.distance() + rightWheel.distance()) / 2;
+}
+
+// What is left to the target of the step that just ended, the app sees how well
+// closed-loop control holds the distances and angles it asked for.
+void sendStepResult()
+{
+    if (routeSequence < 0) return; // ASCII clients would not understand it
+    int distanceError = (int)((motion.target - travelledDistance()) * 10);
+    int headingError = motion.turnDegrees - motion.turnMeasured;
+    uint8_t payload[StepResultPayloadSize] = { routeStep,
+        (uint8_t)distanceError, (uint8_t)(distanceError >> 8),
+        (uint8_t)headingError, (uint8_t)(headingError >> 8) };
+    sendFrame(OpStepResult, payload, StepResultPayloadSize);
+}
+
+void leftEncoderTick()
+{
+    leftTicks++;
+}
+
+void rightEncoderTick()
+{
+    rightTicks++;
+}
+
+// Steps follow each other without stopping, motors stop after the last one.
+void finishStep()
+{
+    sendStepResult();
+    if (routeStep < routeLength)
+    {
+        beginStep(route[routeStep++], true);
+        return;
+    }
+
+    // Set motors speed to 0 = stop them, profile has already slowed them down
+    stopWheels();
+    motion.phase = Idle;
+    routeLength = routeStep = 0;
+
+    bluetooth.println("Finish");
+    if (routeSequence >= 0) sendAck(routeSequence, AckFinished, millis());
+    routeSequence = -1;
+}
+
+// *****************************************************************************
+// In this part we will have to calculate time needed to complete given movement
+// Robot travels approx 16 cm/s (MaxWheelSpeed), encoders decide when it is done.
+// -----------------------------------------------------------------------------
 
-    move(speed);
+// returns true if any obstacle is at least 'distance' cm from the Mobi's face,
+// uses filtered sonar readings so it costs nothing and single noisy echo is ignored
+bool obstacleWithin(unsigned int distance)
+{
+    return sonarFiltered <= distance;
+}
 
-    float seconds = timeRobotNeedsToTurn(HALF_PI, speed);
-    delay(seconds * 1000);
+// Timer interrupt, called every 24uS while NewPing waits for the echo.
+void echoCheck()
+{
+    if (ultrasonic.check_timer())
+    {
+        echoDistance = ultrasonic.ping_result / US_ROUNDTRIP_CM;
+        echoReceived = true;
+    }
+}
+
+void updateSonar(unsigned long now)
+{
+    if (now - lastPing < sonarPeriod) return;
+    lastPing = now;
+
+    // NewPing never calls back when there was no echo, so missing result of the
+    // previous ping means nothing is within MaxSonarDistance.
+    if (pingPending)
+    {
+        noInterrupts();
+        unsigned int distance = echoReceived ? echoDistance : MaxSonarDistance;
+        echoReceived = false;
+        interrupts();
+
+        addSonarSample(distance == 0 ? MaxSonarDistance : distance);
+    }
+
+    ultrasonic.ping_timer(echoCheck);
+    pingPending = true;
+}
+
+void addSonarSample(unsigned int distance)
+{
+    sonarSamples[sonarIndex] = distance;
+    sonarIndex = (sonarIndex + 1) % SonarWindow;
+
+    // median of the window removes spikes, then exponential moving average smooths it
+    unsigned int sorted[SonarWindow];
+    memcpy(sorted, sonarSamples, sizeof(sorted));
+    for (uint8_t i = 1; i < SonarWindow; i++)
+    {
+        unsigned int value = sorted[i];
+        int8_t j = i - 1;
+        while (j >= 0 && sorted[j] > value) { sorted[j + 1] = sorted[j]; j--; }
+        sorted[j + 1] = value;
+    }
 
-    goTowards(distance, speed);
+    unsigned int median = sorted[SonarWindow / 2];
+    sonarFiltered = (sonarFiltered + median) / 2;
 }
 
-void move(unsigned char speed)
+void stopWheels()
 {
-    rightMotor.rotate(speed);
-    leftMotor.rotate(speed);
+    rightWheel.stop();
+    leftWheel.stop();
+    profile.velocity = 0;
 }
 
 float timeRobotNeedsToTravel(long distance, unsigned char speed)
 {
-    return (distance / 16.f) / (speed / 255.f);
+    return distance / cruiseVelocity(speed);
 }
 
 float timeRobotNeedsToTurn(float angle, unsigned char speed)
 {
     // how long will it take to overcome arc length
-    float arcLength = angle * 9.5; // angle in radians * circle radius
+    float arcLength = angle * TurnRadius; // angle in radians * circle radius
     return timeRobotNeedsToTravel(arcLength, speed);
 }
 
@@ -12,8 +12,10 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.ParcelUuid;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -23,10 +25,13 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-
-import static android.bluetooth.le.ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
+import java.util.Locale;
+import java.util.Set;
 
 // BT unique identifier: 00:15:86:13:df:f3
 // credits: https://www.flaticon.com/free-icon/microphone_1540761
@@ -35,12 +40,21 @@ public class AccessBleActivity extends AppCompatActivity {
 
     private static final int REQUEST_ENABLE_BT = 101;
     private static final int REQ_LOCATION_COARSE = 102;
-    private static final String robotMAC = "00:15:86:13:DF:F3";
+    // After the first robot shows up, scan a little longer to gather the rest of the fleet.
+    private static final long COLLECT_PERIOD = 1500;
 
-    public static final String intentDeviceKey = "DEVICE";
+    public static final String intentAddressesKey = "ADDRESSES";
+    // Number of simulated robots to control instead of real ones, for trying the app without
+    // the hardware: adb shell am start -n com.example.robotmobilny/.AccessBleActivity --ei SIMULATED 2
+    public static final String intentSimulatedKey = "SIMULATED";
 
     private BluetoothAdapter bluetoothAdapter;
     private ScanCallback scanCallback;
+    private RobotPreferences robotPreferences;
+    private BtFinder finder;
+    private final Set<String> foundRobots = new LinkedHashSet<>();
+    private final Handler handler = new Handler();
+    private final Runnable finishCollecting = this::finishCollecting;
 
     private TextView locationPermissionDenied;
     private RelativeLayout loadingPanel;
@@ -51,26 +65,32 @@ public class AccessBleActivity extends AppCompatActivity {
         setContentView(R.layout.access_ble_activity);
         locationPermissionDenied = findViewById(R.id.no_location);
         loadingPanel = findViewById(R.id.loadingPanel);
+        // No robot around, long press while searching goes on with a simulated one.
+        loadingPanel.setOnLongClickListener(v -> startSimulation(1));
+        robotPreferences = new RobotPreferences(this);
 
         if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_LONG).show();
             finish();
         }
 
-        final boolean[] found = {false};
         // Define callback when something happens with BLE.
         scanCallback = new ScanCallback() {
             @Override
             public void onScanResult(int callbackType, ScanResult result) {
                 super.onScanResult(callbackType, result);
 
-                if (found[0]) return;
-
                 BluetoothDevice device = result.getDevice();
-                Intent intent = new Intent(AccessBleActivity.this, MainActivity.class);
-                intent.putExtra(intentDeviceKey, device);
-                startActivity(intent);
-                found[0] = true;
+                if (foundRobots.add(device.getAddress()) && foundRobots.size() == 1) {
+                    handler.postDelayed(finishCollecting, COLLECT_PERIOD);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                loadingPanel.setVisibility(View.GONE);
+                Toast.makeText(AccessBleActivity.this, getString(R.string.bt_scan_error, errorCode),
+                        Toast.LENGTH_LONG).show();
             }
         };
     }
@@ -79,10 +99,63 @@ public class AccessBleActivity extends AppCompatActivity {
     protected void onStart() {
         super.onStart();
 
+        int simulated = getIntent().getIntExtra(intentSimulatedKey, 0);
+        if (simulated > 0) {
+            startSimulation(simulated);
+            return;
+        }
+
+        // Robots we know already are connected to directly, scanning is needed only for the first time.
+        Set<String> knownRobots = robotPreferences.getRobots();
+        if (!knownRobots.isEmpty() && isBluetoothEnabled()) {
+            startRobotControl(knownRobots);
+            return;
+        }
+
         // Starts whole procedure from turing on location service to finding robot's bt.
         askForLocationPermission();
     }
 
+    private boolean isBluetoothEnabled() {
+        final BluetoothManager bluetoothManager =
+                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        BluetoothAdapter adapter = bluetoothManager.getAdapter();
+        return adapter != null && adapter.isEnabled();
+    }
+
+    private void finishCollecting() {
+        if (finder != null) finder.stopScan();
+        robotPreferences.saveRobots(foundRobots);
+        startRobotControl(foundRobots);
+    }
+
+    @Override
+    protected void onStop() {
+        handler.removeCallbacks(finishCollecting);
+        if (finder != null) finder.stopScan();
+        super.onStop();
+    }
+
+    // Simulated robots are not remembered, next start looks for real ones again.
+    private boolean startSimulation(int robots) {
+        handler.removeCallbacks(finishCollecting);
+        if (finder != null) finder.stopScan();
+        List<String> addresses = new ArrayList<>();
+        for (int i = 1; i <= robots; i++) {
+            addresses.add(String.format(Locale.ROOT, "%s:%02d", SimulatedTransport.ADDRESS_PREFIX, i));
+        }
+        startRobotControl(addresses);
+        return true;
+    }
+
+    private void startRobotControl(Collection<String> addresses) {
+        Intent intent = new Intent(AccessBleActivity.this, MainActivity.class);
+        intent.putStringArrayListExtra(intentAddressesKey, new ArrayList<>(addresses));
+        startActivity(intent);
+        // Going back from robot control closes the app instead of reconnecting right away.
+        finish();
+    }
+
     // handles asking for permissions for location in order to make BLE scan for devices.
     void askForLocationPermission() {
         // BLE needs permission to location, without it scanning for devices is impossible.
@@ -128,19 +201,15 @@ public class AccessBleActivity extends AppCompatActivity {
     private void lookForDevice() {
         // Enable loading panel so user can know something is happening.
         loadingPanel.setVisibility(View.VISIBLE);
+        foundRobots.clear();
 
+        // Every Mobi advertises the service of its serial module, this finds all of them.
+        // Filter is offloaded to the controller, phone wakes up only for robots.
         ScanFilter.Builder filterBuilder = new ScanFilter.Builder();
-        filterBuilder.setDeviceAddress(robotMAC);
-
-        ScanSettings.Builder settingsBuilder = new ScanSettings.Builder();
-        settingsBuilder.setNumOfMatches(1);
-        //settingsBuilder.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+        filterBuilder.setServiceUuid(new ParcelUuid(GattTransport.SERVICE_UUID));
 
-        ScanFilter filter = filterBuilder.build();
-        ScanSettings settings = settingsBuilder.build();
-
-        BtFinder finder = new BtFinder(bluetoothAdapter);
-        finder.scanLeDevice(Collections.singletonList(filter), settings, scanCallback);
+        finder = new BtFinder(bluetoothAdapter);
+        finder.scanLeDevice(Collections.singletonList(filterBuilder.build()), scanCallback);
     }
 
     @Override
@@ -174,31 +243,66 @@ public class AccessBleActivity extends AppCompatActivity {
         }
     }
 
+    // Scan duty cycle adapts to how long the search takes: low latency finds a robot next to
+    // the phone within a second or two but keeps the radio busy, so it runs only for the first
+    // seconds. Low power scanning goes on until SCAN_PERIOD, after that the scan is left
+    // opportunistic (results of other apps' scans only, no cost) until the activity stops.
+    // Android allows 5 scan starts per 30 s, this makes 3.
     class BtFinder {
 
-        // Stops scanning after 10 seconds.
-        private static final long SCAN_PERIOD = 6000;
+        private static final long LOW_LATENCY_PERIOD = 5000;
+        private static final long SCAN_PERIOD = 60000;
 
         private BluetoothLeScanner bluetoothLeScanner;
         private Handler handler;
+        private List<ScanFilter> filters;
+        private ScanCallback leScanCallback;
+        private final Runnable lowPowerTask = () -> restartScan(ScanSettings.SCAN_MODE_LOW_POWER);
+        private final Runnable stopTask = () -> {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                restartScan(ScanSettings.SCAN_MODE_OPPORTUNISTIC);
+            } else {
+                stopScan();
+            }
+            loadingPanel.setVisibility(View.GONE);
+        };
 
         BtFinder(BluetoothAdapter adapter) {
             bluetoothLeScanner = adapter.getBluetoothLeScanner();
             handler = new Handler();
         }
 
-        void scanLeDevice(List<ScanFilter> filters,
-                          ScanSettings scanSettings,
-                          ScanCallback leScanCallback) {
+        void scanLeDevice(List<ScanFilter> filters, ScanCallback leScanCallback) {
+            this.filters = filters;
+            this.leScanCallback = leScanCallback;
 
-            // Stops scanning after a pre-defined scan period.
-            handler.postDelayed(() -> {
-                bluetoothLeScanner.stopScan(leScanCallback);
-                runOnUiThread(() -> loadingPanel.setVisibility(View.GONE));
-                }, SCAN_PERIOD);
+            handler.postDelayed(lowPowerTask, LOW_LATENCY_PERIOD);
+            handler.postDelayed(stopTask, SCAN_PERIOD);
 
             // Run scanning for BLE devices.
-            bluetoothLeScanner.startScan(filters, scanSettings, leScanCallback);
+            bluetoothLeScanner.startScan(filters, settings(ScanSettings.SCAN_MODE_LOW_LATENCY), leScanCallback);
+        }
+
+        private void restartScan(int scanMode) {
+            if (leScanCallback == null) return;
+            bluetoothLeScanner.stopScan(leScanCallback);
+            bluetoothLeScanner.startScan(filters, settings(scanMode), leScanCallback);
+        }
+
+        private ScanSettings settings(int scanMode) {
+            return new ScanSettings.Builder()
+                    .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                    .setScanMode(scanMode)
+                    .build();
+        }
+
+        void stopScan() {
+            handler.removeCallbacks(lowPowerTask);
+            handler.removeCallbacks(stopTask);
+            if (leScanCallback != null) {
+                bluetoothLeScanner.stopScan(leScanCallback);
+                leScanCallback = null;
+            }
         }
 
     }
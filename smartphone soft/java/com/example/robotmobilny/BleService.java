@@ -1,119 +1,456 @@
 package com.example.robotmobilny;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
 import android.content.Intent;
+import android.os.BatteryManager;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import java.util.UUID;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-// service to write and read to: 0000ffe0-0000-1000-8000-00805f9b34fb
-// characteristic to write and read to: 0000ffe1-0000-1000-8000-00805f9b34fb
-
-public class BleService extends Service {
+// Keeps concurrent GATT sessions with every robot of the fleet, keyed by address.
+// Commands go either to a single robot or, in broadcast mode, to all of them.
+//
+// Runs as a foreground service, so links survive the screen turning off and MainActivity
+// being recreated during long sessions. It is stopped when MainActivity finishes or from
+// its notification.
+public class BleService extends Service implements RobotSession.Host {
 
     private final static String TAG = BleService.class.getSimpleName();
 
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.robotmobilny.bluetooth.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.robotmobilny.bluetooth.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.robotmobilny.bluetooth.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.robotmobilny.bluetooth.EXTRA_DATA";
+    static final String ACTION_STOP = "com.example.robotmobilny.STOP";
+    private static final String CHANNEL_ID = "robot_link";
+    private static final int NOTIFICATION_ID = 1;
+    private static final long POWER_SAMPLE_PERIOD = 60000; // ms
+    private static final String HISTORY_FILE = "commands.txt";
 
     // Binder given to clients
     private final IBinder binder = new LocalBinder();
 
-    private BluetoothGatt bluetoothGatt;
-    BluetoothGattCharacteristic characteristic;
+    // Connection, message and write events go straight to in-process listeners,
+    // no system-wide broadcasts involved.
+    private final ListenerRegistry listeners = new ListenerRegistry();
+
+    // Writes without response are acknowledged by the local stack only, so a few of them
+    // can be handed over at once.
+    private static final int WRITE_PIPELINE_DEPTH = 4;
 
-    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+    private BluetoothAdapter bluetoothAdapter;
+    private final Map<String, RobotSession> sessions = new ConcurrentHashMap<>();
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Scheduler scheduler = new Scheduler() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        bluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+        public void schedule(Runnable task, long delayMillis) {
+            handler.postDelayed(task, delayMillis);
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            characteristic = gatt
-                    .getService(UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb"))
-                    .getCharacteristic(UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb"));
-            bluetoothGatt.setCharacteristicNotification(characteristic, true);
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
         }
+    };
+
+    private volatile int telemetryRate; // Hz, 0 - off
+    private volatile int maxAcceleration; // cm/s^2, 0 - firmware default
+    private volatile int maxSpeed;        // PWM value, 0 - firmware default
+    private volatile boolean writeWithoutResponse;
+    private volatile Telemetry.Listener[] telemetryListeners = new Telemetry.Listener[0];
+
+    // Lives as long as the service, so numbers survive the activity being recreated.
+    private final LatencyMetrics metrics = new LatencyMetrics();
 
-        /*@Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(characteristic);
+    private final PowerBudget powerBudget = new PowerBudget();
+    private boolean overBudgetReported;
+    private final Runnable samplePower = new Runnable() {
+        @Override
+        public void run() {
+            powerBudget.sample(SystemClock.elapsedRealtime(), Process.getElapsedCpuTime(), batteryLevel());
+            if (powerBudget.overBudget() && !overBudgetReported) {
+                overBudgetReported = true;
+                Log.w(TAG, "Over power budget: " + powerBudget.summary());
             }
-        }*/
+            handler.postDelayed(this, POWER_SAMPLE_PERIOD);
+        }
+    };
 
+    // Keeps the notification telling how many robots are connected.
+    private final Set<String> connectedRobots = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final RobotListener notificationUpdater = new RobotListener() {
         @Override
-        // Characteristic notification
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(characteristic);
+        public void onConnectionStateChanged(String address, boolean connected) {
+            if (connected) {
+                connectedRobots.add(address);
+            } else {
+                connectedRobots.remove(address);
+            }
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.notify(NOTIFICATION_ID, buildNotification());
+        }
+    };
+
+    // Commands with their outcomes and macros, kept in a file of the app's private storage.
+    // File is written off the main thread, changes that come in while it is being written
+    // are saved together afterwards.
+    private final CommandHistory history = new CommandHistory();
+    private final ExecutorService historyWriter = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean historySavePending = new AtomicBoolean();
+    private final Runnable saveHistory = () -> {
+        historySavePending.set(false);
+        try (Writer out = new BufferedWriter(new FileWriter(new File(getFilesDir(), HISTORY_FILE)))) {
+            history.write(out);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save command history", e);
         }
     };
+    private final RobotListener historyRecorder = new RobotListener() {
+        @Override
+        public void onMessage(String address, String message) {
+            if (history.onReply(address, message)) saveHistory();
+        }
+
+        @Override
+        public void onWriteResult(String address, byte[] frame, boolean success) {
+            if (!success && history.onWriteFailed(address)) saveHistory();
+        }
+    };
+
+    void connect(String address) {
+        if (sessions.containsKey(address)) return;
+        // Simulated robots let the app be tried out without any hardware around.
+        RobotTransport transport = SimulatedTransport.isSimulated(address)
+                ? new SimulatedTransport(scheduler, address.hashCode())
+                : new GattTransport(this, bluetoothAdapter);
+        RobotSession session = new RobotSession(address, transport, scheduler, this, listeners);
+        session.setWriteWithoutResponse(writeWithoutResponse, WRITE_PIPELINE_DEPTH);
+        sessions.put(address, session);
+        session.connect();
+    }
+
+    void disconnect(String address) {
+        RobotSession session = sessions.remove(address);
+        if (session != null) session.close();
+    }
+
+    Set<String> getRobots() {
+        return sessions.keySet();
+    }
+
+    void sendRoute(String address, List<MotionStep> steps) {
+        RobotSession session = sessions.get(address);
+        if (session == null || !fitsCommand(steps)) return;
+        long now = System.nanoTime();
+        offer(session, session.encodeRoute(steps), metrics.begin(metrics.nextCommandId(), address, now, now));
+    }
+
+    // Broadcast mode: same route for every robot. Frames are encoded for all robots first
+    // and queued in one go afterwards, so the robots start with minimal skew.
+    void sendRoute(List<MotionStep> steps) {
+        sendRoute(steps, System.nanoTime());
+    }
+
+    // 'recognizedNanos' is System.nanoTime() of the speech result the command came from.
+    void sendRoute(List<MotionStep> steps, long recognizedNanos) {
+        if (!fitsCommand(steps)) return;
+        long parsedNanos = System.nanoTime();
+        RobotSession[] targets = sessions.values().toArray(new RobotSession[0]);
+        List<List<byte[]>> frames = new ArrayList<>(targets.length);
+        for (RobotSession session : targets) frames.add(session.encodeRoute(steps));
+        queue(targets, frames, recognizedNanos, parsedNanos);
+    }
+
+    // Stops every robot.
+    void sendStop() {
+        sendStop(System.nanoTime());
+    }
+
+    void sendStop(long recognizedNanos) {
+        long parsedNanos = System.nanoTime();
+        RobotSession[] targets = sessions.values().toArray(new RobotSession[0]);
+        List<List<byte[]>> frames = new ArrayList<>(targets.length);
+        for (RobotSession session : targets) frames.add(Collections.singletonList(session.encodeStop()));
+        queue(targets, frames, recognizedNanos, parsedNanos);
+    }
+
+    // Voice commands are recorded in the history with what was said.
+    void sendRoute(List<MotionStep> steps, String utterance, long recognizedNanos) {
+        if (!fitsCommand(steps)) return;
+        sendRoute(steps, recognizedNanos);
+        history.record(System.currentTimeMillis(), utterance, steps, sessions.keySet());
+        saveHistory();
+    }
+
+    void sendStop(String utterance, long recognizedNanos) {
+        sendStop(recognizedNanos);
+        history.record(System.currentTimeMillis(), utterance, Collections.emptyList(), sessions.keySet());
+        saveHistory();
+    }
+
+    // Macro goes to every robot as a single route, recorded under its name. Returns false if
+    // there is no such macro.
+    boolean runMacro(String name) {
+        List<MotionStep> route = history.macro(name);
+        if (route == null) return false;
+        sendRoute(route, name, System.nanoTime());
+        return true;
+    }
+
+    // Saves the last route sent as macro 'name'. Returns false if no route was sent yet, a route
+    // too long to run is reported to listeners instead.
+    boolean saveLastRouteAsMacro(String name) {
+        List<MotionStep> route = history.lastRoute();
+        if (route != null && !fitsCommand(route)) return true;
+        if (!history.saveMacro(name, route)) return false;
+        saveHistory();
+        return true;
+    }
+
+    // Routes longer than a single command can carry are refused here instead of failing in
+    // the encoder, listeners are told.
+    private boolean fitsCommand(List<MotionStep> steps) {
+        if (steps.size() <= CommandParser.MAX_STEPS) return true;
+        listeners.dispatchRouteTooLong(steps.size());
+        return false;
+    }
+
+    CommandHistory getHistory() {
+        return history;
+    }
+
+    private void saveHistory() {
+        if (historySavePending.compareAndSet(false, true)) historyWriter.execute(saveHistory);
+    }
+
+    // All robots get the same correlation id, each one its own trace.
+    private void queue(RobotSession[] targets, List<List<byte[]>> frames, long recognizedNanos, long parsedNanos) {
+        int id = metrics.nextCommandId();
+        for (int i = 0; i < targets.length; i++) {
+            LatencyMetrics.Trace trace = metrics.begin(id, targets[i].getAddress(), recognizedNanos, parsedNanos);
+            offer(targets[i], frames.get(i), trace);
+        }
+    }
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    private void offer(RobotSession session, List<byte[]> frames, LatencyMetrics.Trace trace) {
+        if (!session.offer(frames, trace)) {
+            Log.w(TAG, "Command queue of " + session.getAddress() + " full, command dropped");
+        }
+    }
+
+    // Changes how often robots sample their ultrasonic sensors, needs binary protocol.
+    void setSonarPeriod(int periodMillis) {
+        for (RobotSession session : sessions.values()) session.offer(session.encodeSonar(periodMillis));
+    }
+
+    // Robots stream telemetry at given rate (1-50 Hz, 0 turns it off), needs binary protocol.
+    // Rate is remembered and requested again after reconnecting.
+    void setTelemetryRate(int hertz) {
+        telemetryRate = hertz;
+        for (RobotSession session : sessions.values()) session.offer(session.encodeTelemetryRate(hertz));
+    }
+
+    @Override
+    public int getTelemetryRate() {
+        return telemetryRate;
     }
 
-    private void broadcastUpdate(final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(BleService.ACTION_DATA_AVAILABLE);
-        final byte[] data = characteristic.getValue();
-        if (data != null && data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data)
-                stringBuilder.append(byteChar);
+    // How hard robots accelerate and brake (cm/s^2) and the highest speed they use whatever
+    // the command says (PWM value), 0 keeps firmware default. Needs binary protocol, limits
+    // are remembered and sent again after reconnecting.
+    void setMotionLimits(int acceleration, int maxSpeed) {
+        maxAcceleration = acceleration;
+        this.maxSpeed = maxSpeed;
+        for (RobotSession session : sessions.values()) session.offer(session.encodeLimits(acceleration, maxSpeed));
+    }
 
-            String message = new String(data);
-            intent.putExtra(EXTRA_DATA, message);
+    @Override
+    public int getMaxAcceleration() {
+        return maxAcceleration;
+    }
+
+    @Override
+    public int getMaxSpeed() {
+        return maxSpeed;
+    }
+
+    void setWriteWithoutResponse(boolean enabled) {
+        writeWithoutResponse = enabled;
+        for (RobotSession session : sessions.values()) {
+            session.setWriteWithoutResponse(enabled, WRITE_PIPELINE_DEPTH);
         }
-        sendBroadcast(intent);
     }
 
-    void send(String query) {
-        characteristic.setValue(query);
-        boolean status = bluetoothGatt.writeCharacteristic(characteristic);
-        Log.i(TAG, String.valueOf(status));
+    @Override
+    public LatencyMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Negotiated MTU, priority, write latency and throughput of every robot's link.
+    String getLinkSummary() {
+        StringBuilder text = new StringBuilder(powerBudget.summary());
+        for (RobotSession session : sessions.values()) {
+            text.append(session.getLinkStats().summary(session.getAddress())).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Writes latency traces and histograms to a CSV file in app's external files directory
+    // (readable with adb pull). Returns the file or null if it could not be written.
+    File exportMetrics() {
+        File file = new File(getExternalFilesDir(null), "latency-" + System.currentTimeMillis() + ".csv");
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            metrics.export(out);
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not export latency metrics", e);
+            return null;
+        }
+    }
+
+    synchronized void addTelemetryListener(Telemetry.Listener listener) {
+        Telemetry.Listener[] listeners = Arrays.copyOf(telemetryListeners, telemetryListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        telemetryListeners = listeners;
+    }
+
+    synchronized void removeTelemetryListener(Telemetry.Listener listener) {
+        List<Telemetry.Listener> listeners = new ArrayList<>(Arrays.asList(telemetryListeners));
+        listeners.remove(listener);
+        telemetryListeners = listeners.toArray(new Telemetry.Listener[0]);
+    }
+
+    // Called by sessions on the Bluetooth thread, must not allocate.
+    @Override
+    public void dispatchTelemetry(Telemetry telemetry) {
+        Telemetry.Listener[] listeners = telemetryListeners;
+        for (int i = 0; i < listeners.length; i++) listeners[i].onTelemetry(telemetry);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+        bluetoothAdapter = bluetoothManager.getAdapter();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.notification_channel), NotificationManager.IMPORTANCE_LOW));
+        }
+        listeners.add(notificationUpdater, handler::post, false);
+        listeners.add(historyRecorder, handler::post, false);
+        loadHistory();
+
+        powerBudget.start(SystemClock.elapsedRealtime(), Process.getElapsedCpuTime(), batteryLevel());
+        handler.postDelayed(samplePower, POWER_SAMPLE_PERIOD);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            // MainActivity may still be bound, it finishes instead of driving closed sessions.
+            listeners.dispatchServiceStopping();
+            for (RobotSession session : sessions.values()) session.close();
+            sessions.clear();
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        startForeground(NOTIFICATION_ID, buildNotification());
+        // Service restarted by the system after being killed gets no addresses, the fleet
+        // is remembered in preferences.
+        Collection<String> addresses = intent != null
+                ? intent.getStringArrayListExtra(AccessBleActivity.intentAddressesKey) : null;
+        if (addresses == null) addresses = new RobotPreferences(this).getRobots();
+        for (String address : addresses) connect(address);
+        return START_STICKY;
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        BluetoothDevice bluetoothDevice = intent.getParcelableExtra(AccessBleActivity.intentDeviceKey);
-        bluetoothGatt = bluetoothDevice.connectGatt(this, false, gattCallback);
+        ArrayList<String> addresses = intent.getStringArrayListExtra(AccessBleActivity.intentAddressesKey);
+        if (addresses != null) {
+            for (String address : addresses) connect(address);
+        }
         return binder;
     }
 
+    private Notification buildNotification() {
+        // Brings back the running activity instead of starting another one.
+        Intent open = new Intent(this, MainActivity.class)
+                .addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        Intent stop = new Intent(this, BleService.class).setAction(ACTION_STOP);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_robot_link)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_connected, connectedRobots.size(), sessions.size()))
+                .setContentIntent(PendingIntent.getActivity(this, 0, open, PendingIntent.FLAG_IMMUTABLE))
+                .addAction(0, getString(R.string.notification_disconnect),
+                        PendingIntent.getService(this, 0, stop, PendingIntent.FLAG_IMMUTABLE))
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true)
+                .build();
+    }
+
+    private void loadHistory() {
+        try (Reader in = new FileReader(new File(getFilesDir(), HISTORY_FILE))) {
+            history.read(in);
+        } catch (FileNotFoundException e) {
+            // nothing said yet
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read command history", e);
+        }
+    }
+
+    // In percents, -1 if unknown.
+    private int batteryLevel() {
+        BatteryManager batteryManager = (BatteryManager) getSystemService(Context.BATTERY_SERVICE);
+        int level = batteryManager != null
+                ? batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY) : -1;
+        return level > 0 && level <= 100 ? level : -1;
+    }
+
     @Override
     public void onDestroy() {
-        if (bluetoothGatt != null) {
-            bluetoothGatt.close();
-            bluetoothGatt = null;
-        }
+        handler.removeCallbacks(samplePower);
+        listeners.remove(notificationUpdater);
+        listeners.remove(historyRecorder);
+        for (RobotSession session : sessions.values()) session.close();
+        sessions.clear();
+        // pending save still runs
+        historyWriter.shutdown();
         super.onDestroy();
     }
 
@@ -122,5 +459,14 @@ public class BleService extends Service {
             // Return this instance of LocalService so clients can call public methods
             return BleService.this;
         }
+
+        // Events are posted to 'handler'. With 'replay' listener gets current state right away.
+        void addListener(RobotListener listener, Handler handler, boolean replay) {
+            listeners.add(listener, handler::post, replay);
+        }
+
+        void removeListener(RobotListener listener) {
+            listeners.remove(listener);
+        }
     }
 }
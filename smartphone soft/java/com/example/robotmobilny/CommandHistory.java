@@ -0,0 +1,250 @@
+package com.example.robotmobilny;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Commands said to the robots, oldest first, with what came of them, and macros: routes saved
+// under a short name ("patrol a") that are sent again with one tap or by saying the name.
+// Knows nothing about Android, BleService keeps it in a file of the app's private storage.
+//
+// Robots report only on the route they are running and a new command replaces the previous
+// one, so their replies always go to the newest entry. Every robot the command went to is
+// followed on its own: its "Finish" counts only after it started this route, an earlier one
+// is the end of the route it was running before.
+//
+// File is plain text, a record per line, fields separated by tabs:
+//   H <millis> <outcome> <route> <utterance>
+//   M <name> <route>
+// where route is steps the way MotionStep prints them separated by spaces ("T50@255 R20@140"),
+// "-" for STOP.
+class CommandHistory {
+
+    enum Outcome {
+        SENT,     // no reply yet
+        STARTED,  // robot announced the first step
+        FINISHED,
+        STOPPED,  // robot stopped before the end of the route
+        OBSTACLE, // some step ended short in front of an obstacle
+        REPLACED, // next command came before robot finished
+        FAILED    // could not be written to the link
+    }
+
+    static final int MAX_ENTRIES = 200;
+
+    static class Entry {
+        final long time; // System.currentTimeMillis()
+        final String utterance;
+        final List<MotionStep> route; // empty for STOP
+        volatile Outcome outcome;
+        // Outcome for every robot the command went to, guarded by CommandHistory. Empty for
+        // entries read from the file, they get no more replies.
+        final Map<String, Outcome> robots = new HashMap<>();
+
+        Entry(long time, String utterance, List<MotionStep> route, Outcome outcome) {
+            this.time = time;
+            this.utterance = utterance;
+            this.route = route;
+            this.outcome = outcome;
+        }
+
+        boolean isRunning() {
+            return outcome == Outcome.SENT || outcome == Outcome.STARTED;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Map<String, List<MotionStep>> macros = new LinkedHashMap<>();
+
+    // Empty 'route' records a STOP, 'robots' are addresses it was sent to.
+    synchronized void record(long time, String utterance, List<MotionStep> route, Collection<String> robots) {
+        Entry last = entries.peekLast();
+        if (last != null && last.isRunning()) {
+            last.outcome = route.isEmpty() ? Outcome.STOPPED : Outcome.REPLACED;
+        }
+        Entry entry = new Entry(time, clean(utterance), new ArrayList<>(route), Outcome.SENT);
+        for (String robot : robots) entry.robots.put(robot, Outcome.SENT);
+        entries.addLast(entry);
+        while (entries.size() > MAX_ENTRIES) entries.removeFirst();
+    }
+
+    // Text line from robot 'address'. Returns true if outcome of the newest command changed.
+    synchronized boolean onReply(String address, String line) {
+        Entry last = entries.peekLast();
+        Outcome before = last != null ? last.robots.get(address) : null;
+        if (before == null) return false;
+
+        Outcome after = before;
+        if (last.route.isEmpty()) {
+            if (before == Outcome.SENT && line.startsWith("Stopped")) after = Outcome.FINISHED;
+        } else if (RobotSession.isStartReply(line)) {
+            if (before == Outcome.SENT) after = Outcome.STARTED;
+        } else if (before == Outcome.STARTED) {
+            // Robot goes on with the route after an obstacle, the step cut short is remembered.
+            if (line.startsWith("Obstacle")) {
+                after = Outcome.OBSTACLE;
+            } else if (line.startsWith("Stopped")) {
+                after = Outcome.STOPPED;
+            } else if (RobotSession.isFinishReply(line)) {
+                after = Outcome.FINISHED;
+            }
+        }
+        if (after == before) return false;
+        last.robots.put(address, after);
+        return updateOutcome(last);
+    }
+
+    // Link to robot 'address' dropped a write after all retries.
+    synchronized boolean onWriteFailed(String address) {
+        Entry last = entries.peekLast();
+        if (last == null || last.robots.get(address) != Outcome.SENT) return false;
+        last.robots.put(address, Outcome.FAILED);
+        return updateOutcome(last);
+    }
+
+    // With more robots the worst outcome is kept, the command runs until every robot is done.
+    private static boolean updateOutcome(Entry entry) {
+        boolean running = false;
+        boolean started = false;
+        Outcome worst = Outcome.FINISHED;
+        for (Outcome outcome : entry.robots.values()) {
+            if (outcome == Outcome.SENT || outcome == Outcome.STARTED) {
+                running = true;
+                started |= outcome == Outcome.STARTED;
+            } else if (outcome.compareTo(worst) > 0) {
+                worst = outcome;
+            }
+        }
+        Outcome outcome = worst != Outcome.FINISHED ? worst
+                : running ? (started ? Outcome.STARTED : Outcome.SENT)
+                : Outcome.FINISHED;
+        if (outcome == entry.outcome) return false;
+        entry.outcome = outcome;
+        return true;
+    }
+
+    // Newest first.
+    synchronized List<Entry> entries() {
+        List<Entry> list = new ArrayList<>(entries);
+        Collections.reverse(list);
+        return list;
+    }
+
+    // Route of the newest command that was not a STOP, null if there is none.
+    synchronized List<MotionStep> lastRoute() {
+        for (Iterator<Entry> it = entries.descendingIterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.route.isEmpty()) return entry.route;
+        }
+        return null;
+    }
+
+    // Saving under an existing name replaces the macro. Returns false if there was nothing
+    // to save or the route is longer than a single command can carry, it could never run.
+    synchronized boolean saveMacro(String name, List<MotionStep> route) {
+        String key = macroName(name);
+        if (key.isEmpty() || route == null || route.isEmpty()) return false;
+        if (route.size() > CommandParser.MAX_STEPS) return false;
+        macros.put(key, new ArrayList<>(route));
+        return true;
+    }
+
+    synchronized List<String> macroNames() {
+        return new ArrayList<>(macros.keySet());
+    }
+
+    synchronized List<MotionStep> macro(String name) {
+        return macros.get(macroName(name));
+    }
+
+    // Macro whose name was said as whole words, e.g. "Mobi, patrol A!" runs "patrol a".
+    // The longest name wins, so "patrol a" is not mistaken for "patrol". Null if none matches.
+    synchronized List<MotionStep> findMacro(String text) {
+        if (macros.isEmpty()) return null;
+        String words = ' ' + macroName(text) + ' ';
+        String found = null;
+        for (String name : macros.keySet()) {
+            if (words.contains(' ' + name + ' ') && (found == null || name.length() > found.length())) {
+                found = name;
+            }
+        }
+        return found != null ? macros.get(found) : null;
+    }
+
+    // Lower case words separated by single spaces, punctuation dropped.
+    static String macroName(String text) {
+        return text.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{Nd}]+", " ").trim();
+    }
+
+    synchronized void write(Writer out) throws IOException {
+        for (Entry entry : entries) {
+            out.write("H\t" + entry.time + '\t' + entry.outcome + '\t' + formatRoute(entry.route)
+                    + '\t' + entry.utterance + '\n');
+        }
+        for (Map.Entry<String, List<MotionStep>> macro : macros.entrySet()) {
+            out.write("M\t" + macro.getKey() + '\t' + formatRoute(macro.getValue()) + '\n');
+        }
+    }
+
+    // Records that can not be understood (file written by a newer version, cut short) are skipped.
+    synchronized void read(Reader in) throws IOException {
+        entries.clear();
+        macros.clear();
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            try {
+                if (fields[0].equals("H") && fields.length == 5) {
+                    entries.addLast(new Entry(Long.parseLong(fields[1]), fields[4], parseRoute(fields[3]),
+                            Outcome.valueOf(fields[2])));
+                } else if (fields[0].equals("M") && fields.length == 3) {
+                    macros.put(fields[1], parseRoute(fields[2]));
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                // skip the record
+            }
+        }
+        while (entries.size() > MAX_ENTRIES) entries.removeFirst();
+    }
+
+    static String formatRoute(List<MotionStep> route) {
+        if (route.isEmpty()) return "-";
+        StringBuilder text = new StringBuilder();
+        for (MotionStep step : route) {
+            if (text.length() > 0) text.append(' ');
+            text.append(step);
+        }
+        return text.toString();
+    }
+
+    // Routes longer than a single command can carry are refused, they would fail when sent.
+    private static List<MotionStep> parseRoute(String text) {
+        List<MotionStep> route = new ArrayList<>();
+        if (text.equals("-")) return route;
+        String[] steps = text.split(" ");
+        if (steps.length > CommandParser.MAX_STEPS) throw new IllegalArgumentException("Route too long");
+        for (String step : steps) {
+            int at = step.indexOf('@');
+            route.add(new MotionStep(step.charAt(0), Integer.parseInt(step.substring(1, at)),
+                    Integer.parseInt(step.substring(at + 1))));
+        }
+        return route;
+    }
+
+    // Utterance is the last field of a line, it must not break the file.
+    private static String clean(String utterance) {
+        return utterance != null ? utterance.replaceAll("[\\t\\r\\n]", " ") : "";
+    }
+}
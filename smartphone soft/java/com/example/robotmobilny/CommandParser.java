@@ -0,0 +1,174 @@
+package com.example.robotmobilny;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Turns spoken sentences into commands in a single pass over the text, words are looked up
+// in the phrase table in place. Understands e.g.
+//   "prosto 50 cm potem w prawo 20 cm"       -> ROUTE [T50, R20]
+//   "pojedź szybko pół metra do tyłu"          -> ROUTE [B50 fast]
+//   "sto dwadzieścia centymetrów w lewo"       -> ROUTE [L120]
+//   "Mobi, stój!"                              -> STOP
+// Each step needs a direction and a distance with a unit (cm or m), in any order. A speed word
+// ("wolno", "szybko") applies to the step it belongs to and the ones after it.
+class CommandParser {
+
+    // Single sentence to command, as parse(String). KeywordMatcher puts its cache in between.
+    interface Sentences {
+        VoiceCommand parse(String text);
+    }
+
+    static final int MAX_STEPS = 8;
+    // Keeps the number within an int. Five digits still go past what the robot can drive,
+    // the distance is checked against MAX_DISTANCE once the unit is known.
+    static final int MAX_DIGITS = 5;
+    // Longest step in cm, the firmware holds distances in an int16.
+    static final int MAX_DISTANCE = Short.MAX_VALUE;
+    static final int DEFAULT_SPEED = PhraseTable.FAST_SPEED; // PWM value
+
+    // Hypotheses scoring below this are treated as noise.
+    static final float MIN_CONFIDENCE = 0.15f;
+
+    private static final PhraseTable table = PhraseTable.polish();
+
+    // Picks the best command out of recognizer's hypotheses, ordered from the most likely one.
+    // 'confidences' may be null or shorter than the list, rank is used instead then.
+    // STOP wins whenever any hypothesis contains it, stopping by mistake is cheap, not stopping is not.
+    static VoiceCommand parse(List<String> hypotheses, float[] confidences) {
+        return parse(hypotheses, confidences, CommandParser::parse);
+    }
+
+    // Same, every hypothesis is parsed by 'sentences'.
+    static VoiceCommand parse(List<String> hypotheses, float[] confidences, Sentences sentences) {
+        VoiceCommand best = VoiceCommand.NONE;
+        for (int i = 0; i < hypotheses.size(); i++) {
+            float prior = confidences != null && i < confidences.length && confidences[i] > 0
+                    ? confidences[i]
+                    : 1f / (i + 1);
+            VoiceCommand command = sentences.parse(hypotheses.get(i));
+            if (command.kind == VoiceCommand.Kind.STOP) return command;
+            if (command.kind == VoiceCommand.Kind.ROUTE && prior * command.confidence > best.confidence) {
+                best = new VoiceCommand(command.kind, command.route, prior * command.confidence, command.utterance);
+            }
+        }
+        return best.confidence >= MIN_CONFIDENCE ? best : VoiceCommand.NONE;
+    }
+
+    // Confidence of the command is the share of words understood.
+    static VoiceCommand parse(String text) {
+        List<MotionStep> steps = null;
+
+        int words = 0;
+        int known = 0;
+
+        double number = -1;     // pending number, waits for its unit
+        int lastNumberWord = 0; // lets "sto dwadzieścia pięć" add up to 125
+        char direction = 0;
+        int distance = -1;
+        int speed = DEFAULT_SPEED;
+        boolean speedGiven = false;
+        boolean lastStepSpeedGiven = true;
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            words++;
+            if (Character.isDigit(c)) {
+                // Digits, optionally with decimal part: "50", "1,5". Unit may be glued: "50cm".
+                int value = 0;
+                int digits = 0;
+                while (i < length && Character.isDigit(text.charAt(i))) {
+                    if (++digits > MAX_DIGITS) return VoiceCommand.NONE;
+                    value = value * 10 + (text.charAt(i++) - '0');
+                }
+                double fraction = 0;
+                if (i + 1 < length && (text.charAt(i) == ',' || text.charAt(i) == '.')
+                        && Character.isDigit(text.charAt(i + 1))) {
+                    i++;
+                    double scale = 0.1;
+                    while (i < length && Character.isDigit(text.charAt(i))) {
+                        fraction += (text.charAt(i++) - '0') * scale;
+                        scale /= 10;
+                    }
+                }
+                number = value + fraction;
+                lastNumberWord = 0;
+                known++;
+                continue;
+            }
+
+            while (i < length && Character.isLetter(text.charAt(i))) i++;
+            int entry = table.match(text, start, i);
+            int kind = table.kindOf(entry);
+            int value = table.valueOf(entry);
+            if (kind != PhraseTable.NONE) known++;
+
+            switch (kind) {
+                case PhraseTable.STOP:
+                    return new VoiceCommand(VoiceCommand.Kind.STOP, Collections.emptyList(), 1f, text);
+
+                case PhraseTable.NUMBER:
+                    boolean compound = number >= 0 && lastNumberWord >= 20 && lastNumberWord % 10 == 0
+                            && value < (lastNumberWord >= 100 ? 100 : 10);
+                    number = compound ? number + value : value;
+                    lastNumberWord = value;
+                    break;
+
+                case PhraseTable.FRACTION:
+                    // "dwa i pół metra" adds the half, "półtora metra" stands alone.
+                    number = number >= 0 && value < 10 ? number + value / 10.0 : value / 10.0;
+                    lastNumberWord = 0;
+                    break;
+
+                case PhraseTable.UNIT:
+                    // Bare unit means one of it: "metr do przodu".
+                    long centimetres = Math.round((number >= 0 ? number : 1) * value);
+                    // Frame would clamp it and the ASCII command would wrap around on the robot.
+                    if (centimetres > MAX_DISTANCE) return VoiceCommand.NONE;
+                    distance = (int) centimetres;
+                    number = -1;
+                    lastNumberWord = 0;
+                    break;
+
+                case PhraseTable.DIRECTION:
+                    direction = (char) value;
+                    break;
+
+                case PhraseTable.SPEED:
+                    // Said right after a finished step, speed belongs to it as well.
+                    if (direction == 0 && distance < 0 && steps != null && !lastStepSpeedGiven) {
+                        MotionStep last = steps.get(steps.size() - 1);
+                        steps.set(steps.size() - 1, new MotionStep(last.direction, last.distance, value));
+                        lastStepSpeedGiven = true;
+                    } else {
+                        speedGiven = true;
+                    }
+                    speed = value;
+                    break;
+            }
+
+            if (direction != 0 && distance >= 0) {
+                if (steps == null) steps = new ArrayList<>();
+                // Robot would run only a part of what was said, better to run nothing.
+                if (steps.size() == MAX_STEPS) return VoiceCommand.NONE;
+                steps.add(new MotionStep(direction, distance, speed));
+                lastStepSpeedGiven = speedGiven;
+                speedGiven = false;
+                direction = 0;
+                distance = -1;
+            }
+        }
+
+        if (steps == null) return VoiceCommand.NONE;
+        float coverage = words > 0 ? (float) known / words : 0;
+        return new VoiceCommand(VoiceCommand.Kind.ROUTE, steps, coverage, text);
+    }
+}
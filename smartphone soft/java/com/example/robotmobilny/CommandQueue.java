@@ -0,0 +1,184 @@
+package com.example.robotmobilny;
+
+import java.util.ArrayDeque;
+
+// Android allows only one outstanding GATT operation per connection, writeCharacteristic()
+// returns false when another one is still pending and the command is silently lost.
+// This queue hands frames to the link one at a time (or up to 'pipelineDepth' at a time
+// for write-without-response) and moves on only when onCharacteristicWrite confirms them.
+class CommandQueue {
+
+    // Stand-in for BluetoothGatt.writeCharacteristic, faked in unit tests.
+    interface Writer {
+        // Returns false if the stack refused the write (busy or not connected).
+        boolean write(byte[] frame, boolean withResponse);
+    }
+
+    interface Callback {
+        // First write attempt of the frame was handed to the stack.
+        void onCommandIssued(byte[] frame);
+
+        void onCommandWritten(byte[] frame);
+
+        void onCommandFailed(byte[] frame);
+    }
+
+    static final int DEFAULT_CAPACITY = 32;
+    static final long DEFAULT_TIMEOUT = 1000; // ms, per single write attempt
+    static final int DEFAULT_RETRIES = 3;
+    // How long to wait before retrying a write refused by the stack.
+    private static final long BUSY_RETRY_DELAY = 10;
+
+    private final Writer writer;
+    private final Scheduler scheduler;
+    private Callback callback;
+
+    private final int capacity;
+    private final long timeout;
+    private final int maxRetries;
+
+    private final ArrayDeque<Command> pending = new ArrayDeque<>();
+    private final ArrayDeque<Command> inFlight = new ArrayDeque<>();
+
+    // Completions still owed by writes that timed out. Writes complete in order, so the
+    // next this many completions belong to them and not to whatever was written since.
+    private int staleCompletions;
+
+    private boolean withResponse = true;
+    private int pipelineDepth = 1;
+    private boolean running;
+
+    private final Runnable busyRetry = this::pump;
+
+    CommandQueue(Writer writer, Scheduler scheduler) {
+        this(writer, scheduler, DEFAULT_CAPACITY, DEFAULT_TIMEOUT, DEFAULT_RETRIES);
+    }
+
+    CommandQueue(Writer writer, Scheduler scheduler, int capacity, long timeout, int maxRetries) {
+        this.writer = writer;
+        this.scheduler = scheduler;
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.maxRetries = maxRetries;
+    }
+
+    synchronized void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    // With response every write is acknowledged by the robot, so only one can be in flight.
+    // Without response the stack acknowledges locally and a few writes can be pipelined.
+    synchronized void setWriteWithoutResponse(boolean enabled, int pipelineDepth) {
+        if (pipelineDepth < 1) throw new IllegalArgumentException("pipelineDepth < 1");
+        this.withResponse = !enabled;
+        this.pipelineDepth = enabled ? pipelineDepth : 1;
+        pump();
+    }
+
+    // Returns false if the queue is full, so caller can report the command as dropped.
+    synchronized boolean offer(byte[] frame) {
+        if (pending.size() + inFlight.size() >= capacity) return false;
+        pending.add(new Command(frame));
+        pump();
+        return true;
+    }
+
+    // Link is ready (services discovered), start writing queued commands.
+    synchronized void start() {
+        running = true;
+        pump();
+    }
+
+    // Link is gone, everything not yet confirmed is failed.
+    synchronized void stop() {
+        running = false;
+        staleCompletions = 0;
+        scheduler.cancel(busyRetry);
+        while (!inFlight.isEmpty()) fail(inFlight.poll());
+        while (!pending.isEmpty()) fail(pending.poll());
+    }
+
+    synchronized boolean isIdle() {
+        return pending.isEmpty() && inFlight.isEmpty();
+    }
+
+    synchronized int size() {
+        return pending.size() + inFlight.size();
+    }
+
+    // Called from BluetoothGattCallback.onCharacteristicWrite. Writes complete in order.
+    synchronized void onWriteComplete(boolean success) {
+        if (staleCompletions > 0) {
+            staleCompletions--;
+            return;
+        }
+        Command command = inFlight.poll();
+        if (command == null) return;
+        scheduler.cancel(command.timeoutTask);
+
+        if (success) {
+            if (callback != null) callback.onCommandWritten(command.frame);
+        } else {
+            retryOrFail(command);
+        }
+        pump();
+    }
+
+    private void onTimeout(Command command) {
+        synchronized (this) {
+            if (!inFlight.remove(command)) return;
+            staleCompletions++;
+            retryOrFail(command);
+            pump();
+        }
+    }
+
+    private void retryOrFail(Command command) {
+        if (command.attempts <= maxRetries) {
+            pending.addFirst(command);
+        } else {
+            fail(command);
+        }
+    }
+
+    private void fail(Command command) {
+        scheduler.cancel(command.timeoutTask);
+        if (callback != null) callback.onCommandFailed(command.frame);
+    }
+
+    private void pump() {
+        if (!running) return;
+        scheduler.cancel(busyRetry);
+
+        while (inFlight.size() < pipelineDepth && !pending.isEmpty()) {
+            Command command = pending.peek();
+            if (!writer.write(command.frame, withResponse)) {
+                // Stack is busy, try again shortly, but give up if it stays busy for
+                // longer than a write is allowed to take.
+                if (++command.busyCount * BUSY_RETRY_DELAY > timeout) {
+                    fail(pending.poll());
+                    continue;
+                }
+                scheduler.schedule(busyRetry, BUSY_RETRY_DELAY);
+                return;
+            }
+            pending.poll();
+            command.attempts++;
+            command.busyCount = 0;
+            inFlight.add(command);
+            scheduler.schedule(command.timeoutTask, timeout);
+            if (command.attempts == 1 && callback != null) callback.onCommandIssued(command.frame);
+        }
+    }
+
+    private final class Command {
+        final byte[] frame;
+        final Runnable timeoutTask = () -> onTimeout(this);
+        int attempts;
+        int busyCount;
+
+        Command(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+}
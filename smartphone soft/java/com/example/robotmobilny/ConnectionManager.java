@@ -0,0 +1,193 @@
+package com.example.robotmobilny;
+
+// Keeps link with one robot alive: connects directly to a known address (no scanning),
+// skips service discovery when characteristic handles are still cached, tunes the link
+// (MTU) before it is used and after the link drops reconnects in the background with
+// exponential backoff.
+class ConnectionManager {
+
+    // Stand-in for BluetoothGatt, simulated in unit tests.
+    interface Adapter {
+        // Starts connecting to 'address', result comes via onConnected/onDisconnected.
+        boolean connect(String address);
+
+        boolean hasCachedServices();
+
+        boolean discoverServices();
+
+        // Result comes via onMtuChanged.
+        boolean requestMtu(int mtu);
+
+        void disconnect();
+    }
+
+    interface Callback {
+        // Link is up and characteristic handles are known, commands can be written.
+        void onReady(boolean fromCache);
+
+        // Ready link was lost, reconnecting (or discovering again) is already under way.
+        // Every onReady after the first one is preceded by onLost.
+        void onLost();
+    }
+
+    enum State { IDLE, CONNECTING, DISCOVERING, TUNING, READY, BACKOFF }
+
+    static final long CONNECT_TIMEOUT = 5000; // ms, for connecting and for discovery
+    static final long TUNING_TIMEOUT = 1000;  // ms, link is used untuned if robot does not answer
+    // Largest MTU worth asking for, a full route frame (39 bytes) then fits in a single write.
+    static final int REQUESTED_MTU = 247;
+    static final long INITIAL_BACKOFF = 250;
+    static final long MAX_BACKOFF = 16000;
+
+    private final Adapter adapter;
+    private final Scheduler scheduler;
+    private final Callback callback;
+
+    private State state = State.IDLE;
+    private String address;
+    private int attempt;
+    private boolean fromCache; // of the link being tuned
+
+    private final Runnable timeoutTask = this::onTimeout;
+    private final Runnable reconnectTask = this::onReconnect;
+
+    ConnectionManager(Adapter adapter, Scheduler scheduler, Callback callback) {
+        this.adapter = adapter;
+        this.scheduler = scheduler;
+        this.callback = callback;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized String getAddress() {
+        return address;
+    }
+
+    synchronized void connect(String address) {
+        if (address.equals(this.address) && state != State.IDLE) return;
+        if (state != State.IDLE) close();
+        this.address = address;
+        attempt = 0;
+        startAttempt();
+    }
+
+    // Stops reconnecting and drops the link.
+    synchronized void close() {
+        boolean wasReady = state == State.READY;
+        state = State.IDLE;
+        scheduler.cancel(timeoutTask);
+        scheduler.cancel(reconnectTask);
+        adapter.disconnect();
+        if (wasReady) callback.onLost();
+    }
+
+    synchronized void onConnected() {
+        if (state != State.CONNECTING) return;
+        scheduler.cancel(timeoutTask);
+
+        if (adapter.hasCachedServices()) {
+            tune(true);
+        } else {
+            discover();
+        }
+    }
+
+    synchronized void onServicesDiscovered(boolean success) {
+        if (state != State.DISCOVERING) return;
+        scheduler.cancel(timeoutTask);
+
+        if (success) {
+            tune(false);
+        } else {
+            adapter.disconnect();
+            scheduleReconnect();
+        }
+    }
+
+    // MTU is negotiated anew on every connection, a failed request leaves the default one.
+    synchronized void onMtuChanged() {
+        if (state != State.TUNING) return;
+        scheduler.cancel(timeoutTask);
+        ready(fromCache);
+    }
+
+    // Cached handles turned out to be stale, discover services again. Link is not usable
+    // until then, so it is reported lost and will be ready again after discovery.
+    synchronized void onServicesInvalid() {
+        if (state != State.READY) return;
+        discover();
+        callback.onLost();
+    }
+
+    synchronized void onDisconnected() {
+        if (state == State.IDLE || state == State.BACKOFF) return;
+        scheduler.cancel(timeoutTask);
+
+        boolean wasReady = state == State.READY;
+        scheduleReconnect();
+        if (wasReady) callback.onLost();
+    }
+
+    private void startAttempt() {
+        state = State.CONNECTING;
+        scheduler.schedule(timeoutTask, CONNECT_TIMEOUT);
+        if (!adapter.connect(address)) {
+            scheduler.cancel(timeoutTask);
+            scheduleReconnect();
+        }
+    }
+
+    private void discover() {
+        state = State.DISCOVERING;
+        scheduler.schedule(timeoutTask, CONNECT_TIMEOUT);
+        if (!adapter.discoverServices()) {
+            scheduler.cancel(timeoutTask);
+            adapter.disconnect();
+            scheduleReconnect();
+        }
+    }
+
+    private void tune(boolean fromCache) {
+        state = State.TUNING;
+        this.fromCache = fromCache;
+        scheduler.schedule(timeoutTask, TUNING_TIMEOUT);
+        if (!adapter.requestMtu(REQUESTED_MTU)) {
+            scheduler.cancel(timeoutTask);
+            ready(fromCache);
+        }
+    }
+
+    private void ready(boolean fromCache) {
+        state = State.READY;
+        attempt = 0;
+        callback.onReady(fromCache);
+    }
+
+    private void scheduleReconnect() {
+        state = State.BACKOFF;
+        long delay = Math.min(INITIAL_BACKOFF << Math.min(attempt, 16), MAX_BACKOFF);
+        attempt++;
+        scheduler.schedule(reconnectTask, delay);
+    }
+
+    private void onTimeout() {
+        synchronized (this) {
+            if (state == State.TUNING) {
+                ready(fromCache);
+                return;
+            }
+            if (state != State.CONNECTING && state != State.DISCOVERING) return;
+            adapter.disconnect();
+            scheduleReconnect();
+        }
+    }
+
+    private void onReconnect() {
+        synchronized (this) {
+            if (state != State.BACKOFF) return;
+            startAttempt();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.robotmobilny;
+
+import java.nio.charset.StandardCharsets;
+
+// Robot's replies come as a byte stream cut into notifications at arbitrary places.
+// It mixes ASCII lines ("Towards 50", "Finish") with binary frames (see MotionCodec),
+// frames are recognized by the sync byte which never appears in text.
+// Buffers are allocated once, so reading frames does not produce garbage.
+class FrameReader {
+
+    interface Callback {
+        // 'buffer' holds whole frame and is reused, read it before returning.
+        void onFrame(int opcode, int sequence, byte[] buffer, int payloadOffset, int payloadLength);
+
+        void onLine(String line);
+    }
+
+    static final int MAX_PAYLOAD = 64;
+    private static final int MAX_LINE = 64;
+
+    private final Callback callback;
+
+    private final byte[] frame = new byte[MotionCodec.HEADER_SIZE + MAX_PAYLOAD + MotionCodec.CRC_SIZE];
+    private int frameLength; // bytes of binary frame received so far, 0 when reading text
+    private final byte[] line = new byte[MAX_LINE];
+    private int lineLength;
+
+    FrameReader(Callback callback) {
+        this.callback = callback;
+    }
+
+    void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (frameLength > 0) {
+                readFrameByte(b);
+            } else if ((b & 0xFF) == MotionCodec.SYNC) {
+                frame[0] = b;
+                frameLength = 1;
+            } else {
+                readLineByte(b);
+            }
+        }
+    }
+
+    void reset() {
+        frameLength = 0;
+        lineLength = 0;
+    }
+
+    private void readFrameByte(byte b) {
+        frame[frameLength++] = b;
+        if (frameLength < MotionCodec.HEADER_SIZE) return;
+
+        int payloadLength = frame[4] & 0xFF;
+        if (frame[1] != MotionCodec.VERSION || payloadLength > MAX_PAYLOAD) {
+            // not a frame we understand, look for next sync byte
+            frameLength = 0;
+            return;
+        }
+
+        int total = MotionCodec.HEADER_SIZE + payloadLength + MotionCodec.CRC_SIZE;
+        if (frameLength < total) return;
+
+        frameLength = 0;
+        int crc = MotionCodec.crc8(frame, 1, total - 2);
+        if (crc == (frame[total - 1] & 0xFF)) {
+            callback.onFrame(frame[2] & 0xFF, frame[3] & 0xFF, frame, MotionCodec.HEADER_SIZE, payloadLength);
+        }
+    }
+
+    private void readLineByte(byte b) {
+        if (b == '\r') return;
+        if (b == '\n' || lineLength == MAX_LINE) {
+            if (lineLength > 0) {
+                callback.onLine(new String(line, 0, lineLength, StandardCharsets.US_ASCII));
+            }
+            lineLength = 0;
+            if (b == '\n') return;
+        }
+        line[lineLength++] = b;
+    }
+}
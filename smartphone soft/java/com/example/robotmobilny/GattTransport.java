@@ -0,0 +1,160 @@
+package com.example.robotmobilny;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.UUID;
+
+// RobotTransport over GATT, talks to the serial BLE module of the robot.
+class GattTransport implements RobotTransport {
+
+    private final static String TAG = GattTransport.class.getSimpleName();
+
+    // service to write and read to: 0000ffe0-0000-1000-8000-00805f9b34fb
+    // characteristic to write and read to: 0000ffe1-0000-1000-8000-00805f9b34fb
+    static final UUID SERVICE_UUID = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC_UUID = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private Listener listener;
+
+    private BluetoothGatt bluetoothGatt;
+    // Kept between reconnects of the same BluetoothGatt, so services need not be discovered again.
+    private BluetoothGattCharacteristic characteristic;
+    private int mtu = MotionCodec.DEFAULT_MTU;
+
+    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (gatt != bluetoothGatt) return; // late event of already closed connection
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "Connected to GATT server " + gatt.getDevice().getAddress());
+                mtu = MotionCodec.DEFAULT_MTU;
+                listener.onConnected();
+
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG, "Disconnected from GATT server " + gatt.getDevice().getAddress() + ", status " + status);
+                listener.onDisconnected();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            BluetoothGattService service = gatt.getService(SERVICE_UUID);
+            characteristic = service != null ? service.getCharacteristic(CHARACTERISTIC_UUID) : null;
+            listener.onServicesDiscovered(status == BluetoothGatt.GATT_SUCCESS && characteristic != null);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) GattTransport.this.mtu = mtu;
+            Log.i(TAG, "MTU " + GattTransport.this.mtu + ", status " + status);
+            listener.onMtuChanged(GattTransport.this.mtu, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            listener.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        // Characteristic notification
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            final byte[] data = characteristic.getValue();
+            if (data != null) listener.onReceive(data, 0, data.length);
+        }
+    };
+
+    GattTransport(Context context, BluetoothAdapter bluetoothAdapter) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        if (bluetoothGatt != null && characteristic != null) {
+            // Same BluetoothGatt keeps its services, connect() waits for the robot to
+            // come back in range and no discovery is needed afterwards.
+            return bluetoothGatt.connect();
+        }
+        close();
+        // Direct connection to a known address, no scanning.
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        bluetoothGatt = device.connectGatt(context, false, gattCallback);
+        return bluetoothGatt != null;
+    }
+
+    @Override
+    public boolean hasCachedServices() {
+        return characteristic != null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return bluetoothGatt != null && bluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return bluetoothGatt != null && bluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public void setHighPriority(boolean high) {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.requestConnectionPriority(high
+                    ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                    : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (bluetoothGatt != null) bluetoothGatt.disconnect();
+    }
+
+    @Override
+    public void enableNotifications() {
+        if (bluetoothGatt != null && characteristic != null) {
+            bluetoothGatt.setCharacteristicNotification(characteristic, true);
+        }
+    }
+
+    @Override
+    public boolean write(byte[] frame, boolean withResponse) {
+        if (bluetoothGatt == null || characteristic == null) return false;
+        characteristic.setWriteType(withResponse
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(frame);
+        return bluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public void invalidateServices() {
+        characteristic = null;
+    }
+
+    @Override
+    public void close() {
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+        }
+        characteristic = null;
+    }
+}
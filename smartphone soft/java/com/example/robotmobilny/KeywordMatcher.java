@@ -0,0 +1,162 @@
+package com.example.robotmobilny;
+
+import java.util.List;
+
+// Watches partial results of the recognizer and fires commands as soon as their meaning is clear,
+// without waiting for the recognizer to decide that the sentence has ended.
+//
+// "stop" (and its synonyms) fires the moment it shows up in a partial result. A route is sent
+// once the partial result holds at least one complete step and stays the same for SETTLE_TIME,
+// or when the final result arrives, whichever comes first. Every utterance sends at most one
+// route, since a new route replaces the one robot is running.
+//
+// Names of macros are understood as well, saying one sends its route. Recognizer repeats the
+// same partial results while the user speaks and users repeat the same commands, so parsed
+// sentences are kept in a small cache.
+class KeywordMatcher {
+
+    // 'recognizedNanos' is System.nanoTime() when the deciding result came from the recognizer,
+    // 'utterance' is what was said.
+    interface Callback {
+        void onStop(String utterance, long recognizedNanos);
+
+        void onRoute(List<MotionStep> route, String utterance, long recognizedNanos);
+    }
+
+    // Pause after which a complete step is taken as the end of the command.
+    static final long SETTLE_TIME = 400; // ms
+
+    private static final int PARSE_CACHE_SIZE = 64;
+    private final LruMap<String, VoiceCommand> parsed = new LruMap<>(PARSE_CACHE_SIZE);
+    private volatile CommandHistory macros;
+
+    private final Scheduler scheduler;
+    private final Callback callback;
+
+    private boolean stopSent;
+    private boolean routeSent;
+    private List<MotionStep> pendingRoute;
+    private String pendingUtterance;
+    private long pendingSince;
+
+    private final Runnable settleTask = this::onSettled;
+
+    KeywordMatcher(Scheduler scheduler, Callback callback) {
+        this.scheduler = scheduler;
+        this.callback = callback;
+    }
+
+    // Macros are looked up in 'history', null turns them off.
+    void setMacros(CommandHistory history) {
+        macros = history;
+    }
+
+    // New utterance begins.
+    synchronized void reset() {
+        scheduler.cancel(settleTask);
+        stopSent = false;
+        routeSent = false;
+        pendingRoute = null;
+    }
+
+    synchronized void onPartial(String text) {
+        if (stopSent) return;
+        long now = System.nanoTime();
+        VoiceCommand command = understand(text);
+        if (command.kind == VoiceCommand.Kind.STOP) {
+            sendStop(text, now);
+            return;
+        }
+        if (routeSent) return;
+        if (command.kind != VoiceCommand.Kind.ROUTE) {
+            // Sentence grew past what the parser accepts (too many steps, absurd number), the
+            // shorter route heard before is not what the user wants either.
+            if (pendingRoute != null) {
+                scheduler.cancel(settleTask);
+                pendingRoute = null;
+            }
+            return;
+        }
+        if (command.route.equals(pendingRoute)) return;
+
+        // Sentence grew, wait for it to settle again.
+        pendingRoute = command.route;
+        pendingUtterance = text;
+        pendingSince = now;
+        scheduler.cancel(settleTask);
+        scheduler.schedule(settleTask, SETTLE_TIME);
+    }
+
+    // Final hypotheses of the recognizer, 'confidences' may be null.
+    // Returns true if a command was sent for this utterance.
+    synchronized boolean onFinal(List<String> hypotheses, float[] confidences) {
+        scheduler.cancel(settleTask);
+        if (stopSent || routeSent) return true;
+
+        long now = System.nanoTime();
+        VoiceCommand command = CommandParser.parse(hypotheses, confidences, this::parse);
+        switch (command.kind) {
+            case STOP:
+                sendStop(command.utterance, now);
+                return true;
+            case ROUTE:
+                sendRoute(command.route, command.utterance, now);
+                return true;
+            default:
+                return sendMacro(hypotheses, now);
+        }
+    }
+
+    // Parser first, a route or STOP said aloud beats a macro whose name is part of the sentence.
+    private VoiceCommand understand(String text) {
+        VoiceCommand command = parse(text);
+        if (command.kind != VoiceCommand.Kind.NONE) return command;
+
+        CommandHistory history = macros;
+        List<MotionStep> route = history != null ? history.findMacro(text) : null;
+        return route != null ? new VoiceCommand(VoiceCommand.Kind.ROUTE, route, 1f, text) : command;
+    }
+
+    // Final result mostly repeats the last partial one, both go through the cache.
+    private VoiceCommand parse(String text) {
+        VoiceCommand command = parsed.get(text);
+        if (command == null) {
+            command = CommandParser.parse(text);
+            parsed.put(text, command);
+        }
+        return command;
+    }
+
+    private boolean sendMacro(List<String> hypotheses, long recognizedNanos) {
+        CommandHistory history = macros;
+        if (history == null) return false;
+        for (String hypothesis : hypotheses) {
+            List<MotionStep> route = history.findMacro(hypothesis);
+            if (route != null) {
+                sendRoute(route, hypothesis, recognizedNanos);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onSettled() {
+        synchronized (this) {
+            if (routeSent || stopSent || pendingRoute == null) return;
+            sendRoute(pendingRoute, pendingUtterance, pendingSince);
+        }
+    }
+
+    private void sendStop(String utterance, long recognizedNanos) {
+        stopSent = true;
+        scheduler.cancel(settleTask);
+        pendingRoute = null;
+        callback.onStop(utterance, recognizedNanos);
+    }
+
+    private void sendRoute(List<MotionStep> route, String utterance, long recognizedNanos) {
+        routeSent = true;
+        pendingRoute = null;
+        callback.onRoute(route, utterance, recognizedNanos);
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.robotmobilny;
+
+import java.util.Arrays;
+
+// Latency histogram in the spirit of HdrHistogram: log-linear buckets with 16 sub-buckets per
+// power of two keep relative error of any percentile under ~6% over the whole range
+// (1 us to over an hour). Recording only increments a counter, it never allocates.
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;   // exact values below this
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final long MAX_VALUE = (1L << 32) - 1;          // us, larger values are clamped
+
+    private final long[] counts = new long[bucketIndex(MAX_VALUE) + 1];
+    private long total;
+    private long sum;
+    private long max;
+
+    synchronized void record(long micros) {
+        long value = Math.max(0, Math.min(MAX_VALUE, micros));
+        counts[bucketIndex(value)]++;
+        total++;
+        sum += value;
+        if (value > max) max = value;
+    }
+
+    synchronized long count() {
+        return total;
+    }
+
+    synchronized long max() {
+        return max;
+    }
+
+    synchronized long mean() {
+        return total > 0 ? sum / total : 0;
+    }
+
+    // Value (us) at given percentile (0-100), upper bound of its bucket.
+    synchronized long percentile(double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(bucketUpperBound(i), max);
+        }
+        return max;
+    }
+
+    synchronized void reset() {
+        Arrays.fill(counts, 0);
+        total = sum = max = 0;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        // Keep the 5 most significant bits: value >> shift lies in [16, 32).
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int) (value >> shift);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long mantissa = index - shift * HALF_SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.robotmobilny;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+// Where the time goes between speaking and the robot finishing the move. Every command gets
+// a correlation id and a Trace per robot it is sent to. Stages are stamped on the phone's clock
+// (System.nanoTime) as soon as the phone learns about them, robot's own timestamps (millis()
+// echoed in ACK frames) are kept next to them. Each stage feeds a histogram with the time
+// elapsed since the previous stage, TOTAL covers recognition to the last stage reached.
+class LatencyMetrics {
+
+    enum Stage {
+        RECOGNIZED,     // recognizer delivered the text that decided the command
+        PARSED,         // command decided, for partial results this includes settle time
+        QUEUED,         // frames offered to the robot's command queue
+        WRITE_ISSUED,   // first chunk handed to the BLE stack
+        WRITE_ACKED,    // last chunk confirmed by the stack
+        ROBOT_RECEIVED, // robot parsed the frame
+        ROBOT_STARTED,  // robot started the motors
+        ROBOT_FINISHED  // route done, stopped or interrupted by an obstacle
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final int KEPT_TRACES = 256;
+
+    static final class Trace {
+        final int id;
+        final String address;
+        int sequence = -1; // of the frame, -1 for ASCII commands
+        final long[] nanos = new long[STAGES.length]; // 0 - stage not reached
+        final long[] robotMillis = new long[STAGES.length];
+
+        Trace(int id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        boolean reached(Stage stage) {
+            return nanos[stage.ordinal()] != 0;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final ArrayDeque<Trace> finished = new ArrayDeque<>();
+    private int nextId;
+
+    LatencyMetrics() {
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+    }
+
+    synchronized int nextCommandId() {
+        return ++nextId;
+    }
+
+    // Starts trace of command 'id' sent to robot 'address'.
+    Trace begin(int id, String address, long recognizedNanos, long parsedNanos) {
+        Trace trace = new Trace(id, address);
+        trace.nanos[Stage.RECOGNIZED.ordinal()] = recognizedNanos;
+        mark(trace, Stage.PARSED, parsedNanos, 0);
+        return trace;
+    }
+
+    void mark(Trace trace, Stage stage) {
+        mark(trace, stage, System.nanoTime(), 0);
+    }
+
+    void markRobot(Trace trace, Stage stage, long robotMillis) {
+        mark(trace, stage, System.nanoTime(), robotMillis);
+    }
+
+    // Only the first time a stage is reached counts (retries, duplicate echoes).
+    private synchronized void mark(Trace trace, Stage stage, long nanos, long robotMillis) {
+        int index = stage.ordinal();
+        if (trace.nanos[index] != 0) return;
+        trace.nanos[index] = nanos;
+        trace.robotMillis[index] = robotMillis;
+
+        for (int previous = index - 1; previous >= 0; previous--) {
+            if (trace.nanos[previous] != 0) {
+                histograms[index].record((nanos - trace.nanos[previous]) / 1000);
+                break;
+            }
+        }
+
+        if (stage == Stage.ROBOT_FINISHED) {
+            total.record((nanos - trace.nanos[0]) / 1000);
+            if (finished.size() == KEPT_TRACES) finished.poll();
+            finished.add(trace);
+        }
+    }
+
+    LatencyHistogram histogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    LatencyHistogram total() {
+        return total;
+    }
+
+    synchronized void reset() {
+        for (LatencyHistogram histogram : histograms) histogram.reset();
+        total.reset();
+        finished.clear();
+    }
+
+    // Few lines for the debug overlay, milliseconds.
+    String summary() {
+        StringBuilder text = new StringBuilder("stage  n  p50  p90  p99  max [ms]\n");
+        for (int i = 1; i < STAGES.length; i++) appendRow(text, STAGES[i].name(), histograms[i]);
+        appendRow(text, "TOTAL", total);
+        return text.toString();
+    }
+
+    private static void appendRow(StringBuilder text, String name, LatencyHistogram histogram) {
+        text.append(String.format(Locale.US, "%s  %d  %.1f  %.1f  %.1f  %.1f\n", name, histogram.count(),
+                histogram.percentile(50) / 1000.0, histogram.percentile(90) / 1000.0,
+                histogram.percentile(99) / 1000.0, histogram.max() / 1000.0));
+    }
+
+    // CSV with every kept trace (stage times in us relative to recognition, robot times in ms
+    // of its own clock) followed by the histogram summary.
+    synchronized void export(Writer out) throws IOException {
+        out.write("id,address,sequence");
+        for (Stage stage : STAGES) out.write(',' + stage.name().toLowerCase(Locale.US) + "_us");
+        out.write(",robot_received_ms,robot_started_ms,robot_finished_ms\n");
+
+        for (Trace trace : finished) {
+            out.write(trace.id + "," + trace.address + ',' + trace.sequence);
+            long start = trace.nanos[0];
+            for (long nanos : trace.nanos) out.write(nanos != 0 ? "," + (nanos - start) / 1000 : ",");
+            out.write("," + trace.robotMillis[Stage.ROBOT_RECEIVED.ordinal()]
+                    + ',' + trace.robotMillis[Stage.ROBOT_STARTED.ordinal()]
+                    + ',' + trace.robotMillis[Stage.ROBOT_FINISHED.ordinal()] + '\n');
+        }
+        out.write('\n');
+        out.write(summary());
+    }
+}
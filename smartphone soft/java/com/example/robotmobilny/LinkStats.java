@@ -0,0 +1,93 @@
+package com.example.robotmobilny;
+
+import java.util.Locale;
+
+// What the link to one robot really achieved: write latency (handed to the stack until
+// confirmed) and throughput while writes were outstanding, next to the MTU and connection
+// priority it was negotiated with. Writes complete in the order they were issued, so they
+// are paired first in first out.
+class LinkStats {
+
+    private static final int MAX_OUTSTANDING = 16; // deeper than any write pipeline
+
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final long[] issued = new long[MAX_OUTSTANDING]; // nanos, ring buffer
+    private int head;
+    private int outstanding;
+
+    private long busySince;
+    private long busyNanos;
+    private long bytesWritten;
+    private int writes;
+    private int failedWrites;
+
+    private int mtu = MotionCodec.DEFAULT_MTU;
+    private boolean highPriority;
+
+    synchronized void onWrite(int length, long nanos) {
+        if (outstanding == MAX_OUTSTANDING) return; // completions got lost, stop pairing
+        if (outstanding == 0) busySince = nanos;
+        issued[(head + outstanding) % MAX_OUTSTANDING] = nanos;
+        outstanding++;
+        bytesWritten += length;
+        writes++;
+    }
+
+    // Stack refused the write right away, it will never complete.
+    synchronized void onWriteRefused(int length) {
+        if (outstanding == 0) return;
+        outstanding--;
+        bytesWritten -= length;
+        writes--;
+    }
+
+    synchronized void onWriteComplete(boolean success, long nanos) {
+        if (outstanding == 0) return;
+        writeLatency.record((nanos - issued[head]) / 1000);
+        head = (head + 1) % MAX_OUTSTANDING;
+        outstanding--;
+        if (outstanding == 0) busyNanos += nanos - busySince;
+        if (!success) failedWrites++;
+    }
+
+    // Link went down, writes in flight will never complete.
+    synchronized void onLost(long nanos) {
+        if (outstanding > 0) busyNanos += nanos - busySince;
+        outstanding = 0;
+    }
+
+    synchronized void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    synchronized int getMtu() {
+        return mtu;
+    }
+
+    synchronized void setHighPriority(boolean highPriority) {
+        this.highPriority = highPriority;
+    }
+
+    LatencyHistogram writeLatency() {
+        return writeLatency;
+    }
+
+    // Bytes per second while the link had something to write.
+    synchronized double throughput() {
+        return busyNanos > 0 ? bytesWritten * 1e9 / busyNanos : 0;
+    }
+
+    synchronized void reset() {
+        writeLatency.reset();
+        busyNanos = bytesWritten = 0;
+        writes = failedWrites = 0;
+    }
+
+    // Single line for the debug overlay.
+    synchronized String summary(String address) {
+        return String.format(Locale.US, "%s mtu %d %s  writes %d (%d failed)  p50 %.1f p99 %.1f ms  %.0f B/s",
+                address.substring(Math.max(0, address.length() - 5)), mtu, highPriority ? "high" : "low",
+                writes, failedWrites, writeLatency.percentile(50) / 1000.0,
+                writeLatency.percentile(99) / 1000.0, throughput());
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.robotmobilny;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// Delivers RobotListener events in-process, each listener on its own executor
+// (Handler::post on Android, direct executor in unit tests).
+class ListenerRegistry {
+
+    private static final class Registration {
+        final RobotListener listener;
+        final Executor executor;
+
+        Registration(RobotListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    // Latest state of every robot, for replaying.
+    private final Map<String, Boolean> connected = new HashMap<>();
+
+    // With 'replay' the listener immediately gets current connection state of every robot,
+    // so a screen created after connecting does not wait for the next event. Messages are
+    // not replayed, a recreated screen would show an old "Finish" or "Obstacle" again.
+    synchronized void add(RobotListener listener, Executor executor, boolean replay) {
+        registrations.add(new Registration(listener, executor));
+        if (replay) {
+            final Map<String, Boolean> states = new HashMap<>(connected);
+            executor.execute(() -> {
+                for (Map.Entry<String, Boolean> state : states.entrySet()) {
+                    listener.onConnectionStateChanged(state.getKey(), state.getValue());
+                }
+            });
+        }
+    }
+
+    void remove(RobotListener listener) {
+        for (Registration registration : registrations) {
+            if (registration.listener == listener) registrations.remove(registration);
+        }
+    }
+
+    void dispatchConnectionState(String address, boolean connected) {
+        synchronized (this) {
+            this.connected.put(address, connected);
+        }
+        for (Registration r : registrations) {
+            r.executor.execute(() -> r.listener.onConnectionStateChanged(address, connected));
+        }
+    }
+
+    void dispatchMessage(String address, String message) {
+        for (Registration r : registrations) {
+            r.executor.execute(() -> r.listener.onMessage(address, message));
+        }
+    }
+
+    void dispatchWriteResult(String address, byte[] frame, boolean success) {
+        for (Registration r : registrations) {
+            r.executor.execute(() -> r.listener.onWriteResult(address, frame, success));
+        }
+    }
+
+    void dispatchStepResult(String address, int step, int distanceError, int headingError) {
+        for (Registration r : registrations) {
+            r.executor.execute(() -> r.listener.onStepResult(address, step, distanceError, headingError));
+        }
+    }
+
+    void dispatchRouteTooLong(int steps) {
+        for (Registration r : registrations) {
+            r.executor.execute(() -> r.listener.onRouteTooLong(steps));
+        }
+    }
+
+    void dispatchServiceStopping() {
+        for (Registration r : registrations) {
+            r.executor.execute(r.listener::onServiceStopping);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.robotmobilny;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps at most 'capacity' entries, the one used least recently is dropped first.
+// Not synchronized.
+class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    LruMap(int capacity) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+    }
+}
@@ -1,45 +1,169 @@
 package com.example.robotmobilny;
 
+import android.Manifest;
 import android.app.Activity;
-import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
+import android.app.AlertDialog;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.speech.RecognizerIntent;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends Activity {
 
     private static final int REQ_CODE_SPEECH_INPUT = 100;
+    private static final int REQ_RECORD_AUDIO = 101;
+    private static final int TELEMETRY_RATE = 10; // Hz
 
     BleService service;
     boolean bound;
+    // Between onStart and onStop, telemetry is streamed only while it can be seen.
+    private boolean started;
 
     private ImageButton microphone;
     private ImageView connectionStatus;
+    private TextView telemetryView;
 
-    private MyReceiver myReceiver;
+    // Debug overlay with latency histograms and link statistics, long press on telemetry shows
+    // it, tap exports the histograms.
+    private static final long OVERLAY_REFRESH_PERIOD = 1000; // ms
+    private TextView latencyOverlay;
+    private final Runnable refreshLatencyOverlay = new Runnable() {
+        @Override
+        public void run() {
+            if (bound) latencyOverlay.setText(service.getMetrics().summary() + service.getLinkSummary());
+            handler.postDelayed(this, OVERLAY_REFRESH_PERIOD);
+        }
+    };
+
+    // Telemetry arrives on the Bluetooth thread, only the numbers we show are copied
+    // and view is refreshed by a single reused runnable.
+    private volatile int obstacleDistance;
+    private volatile int heading;
+    private final AtomicBoolean telemetryUpdatePending = new AtomicBoolean();
+    private final Runnable updateTelemetryView = () -> {
+        telemetryUpdatePending.set(false);
+        telemetryView.setText(getString(R.string.telemetry_format, obstacleDistance, heading));
+    };
+    private final Telemetry.Listener telemetryListener = telemetry -> {
+        obstacleDistance = telemetry.obstacleDistance;
+        heading = telemetry.heading;
+        if (telemetryUpdatePending.compareAndSet(false, true)) {
+            telemetryView.post(updateTelemetryView);
+        }
+    };
+
+    // Robots of the fleet we drive, commands are broadcast to all of them.
+    private List<String> robots = new ArrayList<>();
+    private final Set<String> connectedRobots = new HashSet<>();
+
+    private final Handler handler = new Handler();
+    private final RobotListener robotListener = new RobotListener() {
+        @Override
+        public void onConnectionStateChanged(String address, boolean connected) {
+            if (connected) {
+                connectedRobots.add(address);
+            } else {
+                connectedRobots.remove(address);
+            }
+            updateConnectionIndicator(connectedRobots.containsAll(robots));
+        }
+
+        // Due to construction of the robot's bluetooth module and programming of micro controller,
+        // it shares the same characteristic to read and write.
+        @Override
+        public void onMessage(String address, String message) {
+            if (message.startsWith("F")) {
+                //setReadyForNewVoiceCommand(true);
+            } else {
+                // With more robots tell which one is talking, last part of the address is enough.
+                String text = robots.size() > 1
+                        ? address.substring(address.length() - 5) + ": " + message
+                        : message;
+                Toast.makeText(getApplicationContext(), text, Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        @Override
+        public void onStepResult(String address, int step, int distanceError, int headingError) {
+            Log.i("MainActivity", address + " step " + step + " missed by " + distanceError + " mm, "
+                    + headingError + " deg");
+        }
+
+        @Override
+        public void onRouteTooLong(int steps) {
+            Toast.makeText(getApplicationContext(), getString(R.string.route_too_long, steps, CommandParser.MAX_STEPS),
+                    Toast.LENGTH_LONG).show();
+        }
+
+        // Stopped from the notification, there is nothing left to control.
+        @Override
+        public void onServiceStopping() {
+            finish();
+        }
+    };
+    // Continuous listening, commands are recognized from partial results.
+    private final KeywordMatcher keywordMatcher = new KeywordMatcher(new Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            handler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    }, new KeywordMatcher.Callback() {
+        @Override
+        public void onStop(String utterance, long recognizedNanos) {
+            if (bound) service.sendStop(utterance, recognizedNanos);
+        }
+
+        @Override
+        public void onRoute(List<MotionStep> route, String utterance, long recognizedNanos) {
+            if (bound) service.sendRoute(route, utterance, recognizedNanos);
+        }
+    });
+    private VoiceListener voiceListener;
+
+    private BleService.LocalBinder binder;
     private ServiceConnection connection = new ServiceConnection() {
 
         @Override
         public void onServiceConnected(ComponentName className,
                                        IBinder iBinder) {
             // We've bound to LocalService, cast the IBinder and get LocalService instance
-            BleService.LocalBinder binder = (BleService.LocalBinder) iBinder;
+            binder = (BleService.LocalBinder) iBinder;
             service = binder.getService();
             bound = true;
+            binder.addListener(robotListener, handler, true);
+            service.addTelemetryListener(telemetryListener);
+            if (started) service.setTelemetryRate(TELEMETRY_RATE);
+            keywordMatcher.setMacros(service.getHistory());
         }
 
         @Override
@@ -54,16 +178,32 @@ public class MainActivity extends Activity {
         setContentView(R.layout.main_activity);
 
         // Start BLE service using intent from previous activity which charges it with
-        // bluetooth device that we will connect to.
-        BluetoothDevice robotBt = getIntent().getParcelableExtra(AccessBleActivity.intentDeviceKey);
+        // addresses of the robots that we will connect to. Service is started, not only bound,
+        // so it keeps the links while this activity is recreated or the screen is off.
+        ArrayList<String> addresses = getIntent().getStringArrayListExtra(AccessBleActivity.intentAddressesKey);
+        if (addresses != null) {
+            robots = addresses;
+        } else {
+            // opened from the service's notification
+            robots = new ArrayList<>(new RobotPreferences(this).getRobots());
+        }
         Intent serviceIntent = new Intent(this, BleService.class);
-        serviceIntent.putExtra(AccessBleActivity.intentDeviceKey, robotBt);
+        serviceIntent.putStringArrayListExtra(AccessBleActivity.intentAddressesKey, new ArrayList<>(robots));
+        ContextCompat.startForegroundService(this, serviceIntent);
         bindService(serviceIntent, connection, Context.BIND_AUTO_CREATE);
 
         microphone = findViewById(R.id.microphone);
         connectionStatus = findViewById(R.id.connection_status_indicator);
+        telemetryView = findViewById(R.id.telemetry);
+        latencyOverlay = findViewById(R.id.latency_overlay);
 
-        microphone.setOnClickListener(v -> startVoiceInput());
+        voiceListener = new VoiceListener(this, keywordMatcher, error -> updateMicrophone());
+
+        microphone.setOnClickListener(v -> toggleListening());
+        microphone.setOnLongClickListener(v -> showMacros());
+        connectionStatus.setOnLongClickListener(v -> forgetRobot());
+        telemetryView.setOnLongClickListener(v -> toggleLatencyOverlay());
+        latencyOverlay.setOnClickListener(v -> exportLatency());
     }
 
     void updateConnectionIndicator(boolean state) {
@@ -74,28 +214,117 @@ public class MainActivity extends Activity {
         }
     }
 
+    private boolean toggleLatencyOverlay() {
+        if (latencyOverlay.getVisibility() == View.VISIBLE) {
+            handler.removeCallbacks(refreshLatencyOverlay);
+            latencyOverlay.setVisibility(View.GONE);
+        } else {
+            latencyOverlay.setVisibility(View.VISIBLE);
+            refreshLatencyOverlay.run();
+        }
+        return true;
+    }
+
+    private void exportLatency() {
+        if (!bound) return;
+        File file = service.exportMetrics();
+        String text = file != null ? getString(R.string.latency_exported, file.getAbsolutePath())
+                : getString(R.string.latency_export_failed);
+        Toast.makeText(this, text, Toast.LENGTH_LONG).show();
+    }
+
+    // Saved macros run with a single tap, below them the last route can be saved as a new
+    // one and the command history looked through.
+    private boolean showMacros() {
+        if (!bound) return true;
+        List<String> names = service.getHistory().macroNames();
+        List<String> items = new ArrayList<>(names);
+        items.add(getString(R.string.macro_save));
+        items.add(getString(R.string.command_history));
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.macros)
+                .setItems(items.toArray(new String[0]), (dialog, which) -> {
+                    if (!bound) return;
+                    if (which < names.size()) {
+                        service.runMacro(names.get(which));
+                    } else if (which == names.size()) {
+                        askMacroName();
+                    } else {
+                        showHistory();
+                    }
+                })
+                .show();
+        return true;
+    }
+
+    private void askMacroName() {
+        EditText name = new EditText(this);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.macro_save)
+                .setView(name)
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    if (bound && !service.saveLastRouteAsMacro(name.getText().toString())) {
+                        Toast.makeText(this, R.string.macro_nothing_to_save, Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    private void showHistory() {
+        String[] outcomes = getResources().getStringArray(R.array.command_outcomes);
+        DateFormat format = DateFormat.getTimeInstance(DateFormat.SHORT);
+        List<String> lines = new ArrayList<>();
+        for (CommandHistory.Entry entry : service.getHistory().entries()) {
+            lines.add(format.format(new Date(entry.time)) + "  " + entry.utterance + " ("
+                    + (entry.route.isEmpty() ? "STOP" : CommandHistory.formatRoute(entry.route)) + ")\n"
+                    + outcomes[entry.outcome.ordinal()]);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.command_history)
+                .setItems(lines.toArray(new String[0]), null)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    // Remembered fleet changed (robot replaced or added), go back to scanning for robots.
+    private boolean forgetRobot() {
+        new RobotPreferences(this).forget();
+        Toast.makeText(this, R.string.robot_forgotten, Toast.LENGTH_SHORT).show();
+        startActivity(new Intent(this, AccessBleActivity.class));
+        finish();
+        return true;
+    }
+
     @Override
     protected void onStart() {
-        myReceiver = new MyReceiver();
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BleService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BleService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BleService.ACTION_DATA_AVAILABLE);
-        registerReceiver(myReceiver, intentFilter);
         super.onStart();
+        started = true;
+        if (bound) service.setTelemetryRate(TELEMETRY_RATE);
     }
 
     @Override
     protected void onStop() {
-        unregisterReceiver(myReceiver);
+        // Microphone is not kept open in the background, nor is the robot's telemetry sent
+        // to a screen nobody looks at.
+        started = false;
+        if (bound) service.setTelemetryRate(0);
+        voiceListener.stop();
+        updateMicrophone();
         super.onStop();
     }
 
     @Override
     protected void onDestroy() {
+        handler.removeCallbacks(refreshLatencyOverlay);
+        voiceListener.destroy();
         if (bound) {
+            binder.removeListener(robotListener);
+            service.removeTelemetryListener(telemetryListener);
             unbindService(connection);
         }
+        // Leaving robot control ends the session, recreation (rotation, memory) does not.
+        if (isFinishing()) stopService(new Intent(this, BleService.class));
         super.onDestroy();
     }
 
@@ -105,6 +334,42 @@ public class MainActivity extends Activity {
         //} else { microphone.setVisibility(View.GONE); }
     }
 
+    private void toggleListening() {
+        if (!VoiceListener.isAvailable(this)) {
+            // No recognition service to talk to directly, fall back to the system dialog.
+            startVoiceInput();
+            return;
+        }
+        if (voiceListener.isListening()) {
+            voiceListener.stop();
+        } else if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.RECORD_AUDIO}, REQ_RECORD_AUDIO);
+        } else {
+            voiceListener.start();
+        }
+        updateMicrophone();
+    }
+
+    private void updateMicrophone() {
+        microphone.setImageDrawable(getDrawable(voiceListener.isListening()
+                ? R.drawable.microphone_on
+                : R.drawable.microphone_off));
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        if (requestCode == REQ_RECORD_AUDIO) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                voiceListener.start();
+                updateMicrophone();
+            } else {
+                Toast.makeText(this, R.string.no_record_audio_allowed, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
     private void startVoiceInput() {
         String instruction = this.getString(R.string.voice_extra_prompt);
 
@@ -123,67 +388,32 @@ public class MainActivity extends Activity {
             if (resultCode == RESULT_OK && null != data) {
                 // let's create
                 ArrayList<String> result = data.getStringArrayListExtra(RecognizerIntent.EXTRA_RESULTS);
-                String command = result.get(0);
-                String query = createQuery(command);
-                service.send(query);
+                float[] confidences = data.getFloatArrayExtra(RecognizerIntent.EXTRA_CONFIDENCE_SCORES);
+                long recognizedNanos = System.nanoTime();
+                if (result != null) sendMoveCommand(CommandParser.parse(result, confidences), recognizedNanos);
                 // Disable input until our toy responses job is done.
                 //setReadyForNewVoiceCommand(false);
             }
         }
     }
 
-    private String createQuery(String cmd) {
-        String voice = cmd.toLowerCase();
-        StringBuilder stringBuilder = new StringBuilder();
-
-        char divider = ';';
-
-        // 'M' at the beginning for ride
-        stringBuilder.append('M');
-
-        if (voice.contains("przodu") || voice.contains("prosto")) { stringBuilder.append('T'); }
-        if (voice.contains("prawo") || voice.contains("prawej")) { stringBuilder.append('R'); }
-        if (voice.contains("tyłu") || voice.contains("tył")) { stringBuilder.append('B'); }
-        if (voice.contains("lewo") || voice.contains("lewej")) { stringBuilder.append('L'); }
-
-        stringBuilder.append(divider);
-
-        // Let's find distance now.
-        int indexOfCm = voice.indexOf("cm");
-        int indexOfDistance = voice.substring(0, indexOfCm - 1).lastIndexOf(' ');
-        String distance = voice.substring(indexOfDistance + 1, indexOfCm - 1);
-
-        stringBuilder.append(distance);
-        stringBuilder.append(divider);
-
-        int speed = 255; // PWM value
-        stringBuilder.append(speed);
-        stringBuilder.append(divider);
-
-        stringBuilder.append('\n');
-
-        return stringBuilder.toString();
-    }
-
-    class MyReceiver extends BroadcastReceiver {
-        // Due to construction of the robot's bluetooth module and programming of micro controller,
-        // it shares the same characteristic to read and write, so method below receives every
-        // message that phone sends or receives through bluetooth.
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BleService.ACTION_GATT_CONNECTED.equals(action)) {
-                updateConnectionIndicator(true);
-            } else if (BleService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                updateConnectionIndicator(false);
-            } else if (BleService.ACTION_DATA_AVAILABLE.equals(action)) {
-                String data = intent.getStringExtra(BleService.EXTRA_DATA);
-                if (data.startsWith("F")) {
-                    //setReadyForNewVoiceCommand(true);
-                } else {
-                    Toast.makeText(getApplicationContext(), data, Toast.LENGTH_SHORT).show();
-                }
-            }
+    private void sendMoveCommand(VoiceCommand command, long recognizedNanos) {
+        // Dialog result may come back before the service is bound (activity recreated meanwhile).
+        if (!bound) {
+            Log.w("MainActivity", "Service not bound, command dropped");
+            return;
+        }
+        switch (command.kind) {
+            case STOP:
+                // Robot drops whatever it is doing, even in the middle of a route.
+                service.sendStop(command.utterance, recognizedNanos);
+                break;
+            case ROUTE:
+                // Whole sentence may describe several consecutive moves, they travel as one route.
+                service.sendRoute(command.route, command.utterance, recognizedNanos);
+                break;
+            default:
+                Log.w("MainActivity", "No command recognized");
         }
     }
 }
@@ -0,0 +1,181 @@
+package com.example.robotmobilny;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Encodes commands for the robot. Two formats are supported:
+//
+// binary (protocol version 1), every frame is:
+//   [0xAA sync][version][opcode][sequence][payload length][payload...][CRC8]
+//   CRC8 (polynomial 0x07) covers everything between sync and CRC.
+//   MOVE payload: [direction char][distance int16 LE][speed uint8] -> 10 bytes per frame.
+//   STOP has no payload, robot halts immediately, also in the middle of a route.
+//   ROUTE payload: [step count][MOVE payload]... -> robot runs steps back to back.
+//   SONAR payload: [sampling period ms] -> robot answers with "Sonar <filtered distance>".
+//   TELEMETRY payload: [rate Hz], 0 turns stream off. Robot sends TELEMETRY frames back,
+//   see Telemetry for their layout.
+//   ACK (robot -> phone) payload: [sequence of the command][event][robot millis uint32 LE],
+//   sent when a MOVE, ROUTE or STOP is received, when motors start and when it is finished.
+//   STEP_RESULT (robot -> phone) payload: [route step][distance error mm int16 LE]
+//   [heading error deg int16 LE], sent after each step of a binary command. Errors are target
+//   minus what wheel encoders measured, positive when robot fell short.
+//   LIMITS payload: [max acceleration cm/s^2 uint16 LE][max speed uint8], limits of the
+//   robot's motion profile, 0 restores firmware default. Used from the next move on.
+//
+// ASCII (original firmware): "M<direction>;<distance>;<speed>;\n", stop is "S\n"
+//
+// Right after connecting the phone sends VERSION_QUERY. Firmware that understands binary
+// frames answers with "V<version>", older firmware ignores it and ASCII stays in use.
+class MotionCodec {
+
+    static final int SYNC = 0xAA;
+    static final int VERSION = 1;
+
+    static final int OP_MOVE = 0x01;
+    static final int OP_STOP = 0x02;
+    static final int OP_ROUTE = 0x03;
+    static final int OP_SONAR = 0x04;
+    static final int OP_TELEMETRY = 0x05;
+    static final int OP_ACK = 0x06;
+
+    static final int ACK_RECEIVED = 1;
+    static final int ACK_STARTED = 2;
+    static final int ACK_FINISHED = 3;
+    static final int ACK_PAYLOAD_SIZE = 6;
+
+    static final int OP_STEP_RESULT = 0x07;
+    static final int STEP_RESULT_PAYLOAD_SIZE = 5;
+
+    static final int OP_LIMITS = 0x08;
+    static final int LIMITS_PAYLOAD_SIZE = 3;
+
+    static final int HEADER_SIZE = 5;
+    static final int CRC_SIZE = 1;
+    static final int MOVE_PAYLOAD_SIZE = 4;
+
+    // ATT payload of a single characteristic write is MTU minus ATT header, 20 bytes until
+    // a larger MTU is negotiated.
+    static final int DEFAULT_MTU = 23;
+    static final int ATT_HEADER_SIZE = 3;
+    static final int BLE_PAYLOAD_SIZE = DEFAULT_MTU - ATT_HEADER_SIZE;
+
+    static final byte[] VERSION_QUERY = "V\n".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] ASCII_STOP = "S\n".getBytes(StandardCharsets.US_ASCII);
+
+    private int sequence;
+
+    byte[] encodeMove(char direction, int distance, int speed) {
+        byte[] frame = new byte[HEADER_SIZE + MOVE_PAYLOAD_SIZE + CRC_SIZE];
+        int i = writeHeader(frame, OP_MOVE, MOVE_PAYLOAD_SIZE);
+        i = writeStep(frame, i, direction, distance, speed);
+        frame[i] = (byte) crc8(frame, 1, i - 1);
+        return frame;
+    }
+
+    byte[] encodeStop() {
+        byte[] frame = new byte[HEADER_SIZE + CRC_SIZE];
+        int i = writeHeader(frame, OP_STOP, 0);
+        frame[i] = (byte) crc8(frame, 1, i - 1);
+        return frame;
+    }
+
+    byte[] encodeSonar(int periodMillis) {
+        return encodeByteParam(OP_SONAR, periodMillis);
+    }
+
+    byte[] encodeTelemetryRate(int hertz) {
+        return encodeByteParam(OP_TELEMETRY, hertz);
+    }
+
+    byte[] encodeLimits(int acceleration, int maxSpeed) {
+        byte[] frame = new byte[HEADER_SIZE + LIMITS_PAYLOAD_SIZE + CRC_SIZE];
+        int i = writeHeader(frame, OP_LIMITS, LIMITS_PAYLOAD_SIZE);
+        int clamped = Math.max(0, Math.min(0xFFFF, acceleration));
+        frame[i++] = (byte) clamped;
+        frame[i++] = (byte) (clamped >> 8);
+        frame[i++] = (byte) Math.max(0, Math.min(255, maxSpeed));
+        frame[i] = (byte) crc8(frame, 1, i - 1);
+        return frame;
+    }
+
+    // Frame may be longer than a single BLE write, RobotProtocol.pack() cuts it.
+    byte[] encodeRoute(List<MotionStep> steps) {
+        if (steps.size() > CommandParser.MAX_STEPS) throw new IllegalArgumentException("Route too long");
+        int payloadSize = 1 + steps.size() * MOVE_PAYLOAD_SIZE;
+        byte[] frame = new byte[HEADER_SIZE + payloadSize + CRC_SIZE];
+        int i = writeHeader(frame, OP_ROUTE, payloadSize);
+        frame[i++] = (byte) steps.size();
+        for (MotionStep step : steps) {
+            i = writeStep(frame, i, step.direction, step.distance, step.speed);
+        }
+        frame[i] = (byte) crc8(frame, 1, i - 1);
+        return frame;
+    }
+
+    // Copy of a frame encoded earlier with a sequence number of its own, so ACKs of a command
+    // sent again are not taken for the ones of its first run.
+    byte[] restamp(byte[] frame) {
+        byte[] copy = frame.clone();
+        copy[3] = (byte) nextSequence();
+        copy[copy.length - 1] = (byte) crc8(copy, 1, copy.length - 2);
+        return copy;
+    }
+
+    static byte[] encodeAsciiMove(char direction, int distance, int speed) {
+        String query = "M" + direction + ';' + distance + ';' + speed + ';' + '\n';
+        return query.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Returns protocol version announced by the robot or -1 if 'line' is not a version reply.
+    static int parseVersionReply(String line) {
+        String trimmed = line.trim();
+        if (trimmed.length() < 2 || trimmed.charAt(0) != 'V') return -1;
+        try {
+            return Integer.parseInt(trimmed.substring(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+
+    private byte[] encodeByteParam(int opcode, int value) {
+        byte[] frame = new byte[HEADER_SIZE + 1 + CRC_SIZE];
+        int i = writeHeader(frame, opcode, 1);
+        frame[i++] = (byte) Math.max(0, Math.min(255, value));
+        frame[i] = (byte) crc8(frame, 1, i - 1);
+        return frame;
+    }
+
+    private static int writeStep(byte[] frame, int i, char direction, int distance, int speed) {
+        frame[i++] = (byte) direction;
+        int clamped = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, distance));
+        frame[i++] = (byte) clamped;
+        frame[i++] = (byte) (clamped >> 8);
+        frame[i++] = (byte) Math.max(0, Math.min(255, speed));
+        return i;
+    }
+
+    private int writeHeader(byte[] frame, int opcode, int payloadLength) {
+        frame[0] = (byte) SYNC;
+        frame[1] = (byte) VERSION;
+        frame[2] = (byte) opcode;
+        frame[3] = (byte) nextSequence();
+        frame[4] = (byte) payloadLength;
+        return HEADER_SIZE;
+    }
+
+    private synchronized int nextSequence() {
+        sequence = (sequence + 1) & 0xFF;
+        return sequence;
+    }
+}
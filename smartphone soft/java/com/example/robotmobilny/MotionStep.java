@@ -0,0 +1,33 @@
+package com.example.robotmobilny;
+
+// Single movement of the robot: turn towards 'direction' (T, B, R, L) and drive 'distance' cm.
+class MotionStep {
+
+    final char direction;
+    final int distance;
+    final int speed; // PWM value
+
+    MotionStep(char direction, int distance, int speed) {
+        this.direction = direction;
+        this.distance = distance;
+        this.speed = speed;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MotionStep)) return false;
+        MotionStep step = (MotionStep) o;
+        return direction == step.direction && distance == step.distance && speed == step.speed;
+    }
+
+    @Override
+    public int hashCode() {
+        return (direction * 31 + distance) * 31 + speed;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(direction) + distance + '@' + speed;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.robotmobilny;
+
+import java.util.Arrays;
+
+// Vocabulary of voice commands compiled into a character trie. Words are looked up in place,
+// straight from the utterance, without lowercasing or cutting it into substrings.
+//
+// Entries marked as prefixes match inflected forms too: "metr" covers "metry" and "metrów".
+// An exact entry wins over a prefix, so "m" (meter) does not swallow every word starting with m.
+// Short stems that start other words ("praw" - "prawie", "prost" - "po prostu") are listed
+// as their inflected forms instead.
+class PhraseTable {
+
+    static final int NONE = 0;
+    static final int DIRECTION = 1; // value: direction char
+    static final int NUMBER = 2;    // value: number
+    static final int UNIT = 3;      // value: centimeters per unit
+    static final int SPEED = 4;     // value: PWM
+    static final int STOP = 5;
+    static final int FILLER = 6;    // known word without meaning for the robot, e.g. "proszę"
+    static final int FRACTION = 7;  // value: tenths, "pół" -> 5, "półtora" -> 15
+
+    static final int SLOW_SPEED = 140;
+    static final int MEDIUM_SPEED = 200;
+    static final int FAST_SPEED = 255;
+
+    private static final int ROOT = 0;
+
+    // Trie stored in parallel arrays, children of a node form a linked list.
+    private char[] label = new char[256];
+    private int[] firstChild = new int[256];
+    private int[] nextSibling = new int[256];
+    private int[] kind = new int[256];
+    private int[] value = new int[256];
+    private boolean[] prefix = new boolean[256];
+    private int size = 1;
+
+    private static final PhraseTable POLISH = buildPolish();
+
+    static PhraseTable polish() {
+        return POLISH;
+    }
+
+    void add(String word, int wordKind, int wordValue, boolean isPrefix) {
+        int node = ROOT;
+        for (int i = 0; i < word.length(); i++) {
+            node = child(node, word.charAt(i), true);
+        }
+        kind[node] = wordKind;
+        value[node] = wordValue;
+        prefix[node] = isPrefix;
+    }
+
+    // Looks up text[start, end) ignoring case. Returns the entry found, read it with kindOf/valueOf,
+    // or 0 when the word is unknown. Lookups only read the table, it can be shared between threads.
+    int match(CharSequence text, int start, int end) {
+        int node = ROOT;
+        int prefixEntry = ROOT;
+
+        for (int i = start; i < end && node >= 0; i++) {
+            node = child(node, Character.toLowerCase(text.charAt(i)), false);
+            if (node > 0 && prefix[node] && kind[node] != NONE) prefixEntry = node;
+        }
+        return node > 0 && kind[node] != NONE ? node : prefixEntry;
+    }
+
+    int kindOf(int entry) {
+        return kind[entry];
+    }
+
+    int valueOf(int entry) {
+        return value[entry];
+    }
+
+    private int child(int node, char c, boolean create) {
+        for (int n = firstChild[node]; n != 0; n = nextSibling[n]) {
+            if (label[n] == c) return n;
+        }
+        if (!create) return -1;
+
+        if (size == label.length) grow();
+        int n = size++;
+        label[n] = c;
+        nextSibling[n] = firstChild[node];
+        firstChild[node] = n;
+        return n;
+    }
+
+    private void grow() {
+        int capacity = label.length * 2;
+        label = Arrays.copyOf(label, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+        value = Arrays.copyOf(value, capacity);
+        prefix = Arrays.copyOf(prefix, capacity);
+    }
+
+    private static PhraseTable buildPolish() {
+        PhraseTable table = new PhraseTable();
+
+        table.add("prosto", DIRECTION, 'T', false);
+        table.add("przod", DIRECTION, 'T', true);
+        table.add("przód", DIRECTION, 'T', true);
+        table.add("naprzód", DIRECTION, 'T', true);
+        for (String right : new String[]{"prawo", "prawa", "prawej", "prawą"}) table.add(right, DIRECTION, 'R', false);
+        for (String left : new String[]{"lewo", "lewa", "lewej", "lewą"}) table.add(left, DIRECTION, 'L', false);
+        table.add("tył", DIRECTION, 'B', true);
+        table.add("tyl", DIRECTION, 'B', true);
+        table.add("wstecz", DIRECTION, 'B', false);
+        table.add("cof", DIRECTION, 'B', true);
+
+        table.add("stop", STOP, 0, false);
+        table.add("stój", STOP, 0, false);
+        table.add("stoj", STOP, 0, false);
+        table.add("zatrzymaj", STOP, 0, true);
+        table.add("hamuj", STOP, 0, false);
+
+        table.add("cm", UNIT, 1, false);
+        table.add("centymetr", UNIT, 1, true);
+        table.add("m", UNIT, 100, false);
+        table.add("metr", UNIT, 100, true);
+
+        table.add("woln", SPEED, SLOW_SPEED, true);
+        table.add("powoli", SPEED, SLOW_SPEED, false);
+        table.add("średni", SPEED, MEDIUM_SPEED, true);
+        table.add("sredni", SPEED, MEDIUM_SPEED, true);
+        table.add("szybk", SPEED, FAST_SPEED, true);
+        table.add("szybciej", SPEED, FAST_SPEED, false);
+
+        table.add("pół", FRACTION, 5, false);
+        table.add("pol", FRACTION, 5, false);
+        table.add("półtora", FRACTION, 15, false);
+        table.add("poltora", FRACTION, 15, false);
+
+        String[] ones = {"zero", "jeden", "dwa", "trzy", "cztery", "pięć", "sześć", "siedem", "osiem", "dziewięć",
+                "dziesięć", "jedenaście", "dwanaście", "trzynaście", "czternaście", "piętnaście", "szesnaście",
+                "siedemnaście", "osiemnaście", "dziewiętnaście"};
+        for (int i = 0; i < ones.length; i++) table.add(ones[i], NUMBER, i, false);
+        table.add("jedna", NUMBER, 1, false);
+        table.add("jedno", NUMBER, 1, false);
+        table.add("dwie", NUMBER, 2, false);
+
+        String[] tens = {"dwadzieścia", "trzydzieści", "czterdzieści", "pięćdziesiąt", "sześćdziesiąt",
+                "siedemdziesiąt", "osiemdziesiąt", "dziewięćdziesiąt"};
+        for (int i = 0; i < tens.length; i++) table.add(tens[i], NUMBER, (i + 2) * 10, false);
+
+        String[] hundreds = {"sto", "dwieście", "trzysta", "czterysta", "pięćset", "sześćset", "siedemset",
+                "osiemset", "dziewięćset"};
+        for (int i = 0; i < hundreds.length; i++) table.add(hundreds[i], NUMBER, (i + 1) * 100, false);
+
+        String[] fillers = {"mobi", "robot", "robocie", "proszę", "prosze", "jedź", "jedz", "pojedź", "pojedz",
+                "skręć", "skrec", "obróć", "obroc", "do", "w", "na", "o", "i", "a", "potem",
+                "następnie", "nastepnie", "teraz", "się", "sie", "kierunku", "stronę", "strone"};
+        for (String filler : fillers) table.add(filler, FILLER, 0, false);
+
+        return table;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.robotmobilny;
+
+import java.util.Locale;
+
+// Battery and CPU a session with the robots may cost. BleService samples battery level and
+// CPU time of the process periodically, rates are computed since the session started, so
+// short bursts (scanning, connecting, a long route with telemetry) average out over hours.
+// Battery only counts while discharging, plugging the phone in starts measuring anew.
+class PowerBudget {
+
+    static final double BATTERY_BUDGET = 5; // % of battery per hour
+    static final double CPU_BUDGET = 2;     // % of a single core
+    // Battery level changes in whole percents, earlier estimates would be mostly noise.
+    private static final long MIN_BATTERY_PERIOD = 30 * 60 * 1000; // ms
+
+    private long cpuStart;      // ms of process CPU time
+    private long elapsedStart;  // ms of wall clock, for CPU
+    private long batteryStart;  // ms of wall clock, for battery
+    private int batteryLevelStart = -1;
+
+    private double cpuPercent;
+    private double batteryPerHour;
+
+    synchronized void start(long elapsedMillis, long cpuMillis, int batteryLevel) {
+        elapsedStart = batteryStart = elapsedMillis;
+        cpuStart = cpuMillis;
+        batteryLevelStart = batteryLevel;
+        cpuPercent = batteryPerHour = 0;
+    }
+
+    // 'batteryLevel' in percents, negative if unknown.
+    synchronized void sample(long elapsedMillis, long cpuMillis, int batteryLevel) {
+        long elapsed = elapsedMillis - elapsedStart;
+        if (elapsed > 0) cpuPercent = 100.0 * (cpuMillis - cpuStart) / elapsed;
+
+        if (batteryLevel < 0) return;
+        if (batteryLevelStart < 0 || batteryLevel > batteryLevelStart) {
+            // charging, or level was not known yet
+            batteryStart = elapsedMillis;
+            batteryLevelStart = batteryLevel;
+            batteryPerHour = 0;
+            return;
+        }
+        long discharging = elapsedMillis - batteryStart;
+        if (discharging >= MIN_BATTERY_PERIOD) {
+            batteryPerHour = (batteryLevelStart - batteryLevel) * 3600000.0 / discharging;
+        }
+    }
+
+    synchronized double cpuPercent() {
+        return cpuPercent;
+    }
+
+    synchronized double batteryPerHour() {
+        return batteryPerHour;
+    }
+
+    synchronized boolean overBudget() {
+        return cpuPercent > CPU_BUDGET || batteryPerHour > BATTERY_BUDGET;
+    }
+
+    synchronized String summary() {
+        return String.format(Locale.US, "cpu %.1f%% (budget %.0f%%)  battery %.1f%%/h (budget %.0f%%/h)\n",
+                cpuPercent, CPU_BUDGET, batteryPerHour, BATTERY_BUDGET);
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.robotmobilny;
+
+// Events of the links with robots, delivered by BleService on the executor given at
+// registration. 'address' tells which robot of the fleet the event is about.
+// Telemetry has its own synchronous Telemetry.Listener.
+interface RobotListener {
+
+    default void onConnectionStateChanged(String address, boolean connected) {}
+
+    // Text line sent by the robot, e.g. "Towards 50" or "Finish".
+    default void onMessage(String address, String message) {}
+
+    // Frame was confirmed by the link (success) or dropped after all retries.
+    default void onWriteResult(String address, byte[] frame, boolean success) {}
+
+    // Step 'step' (1-based) of a route finished this far from its target, as measured by
+    // the robot's wheel encoders. Errors are positive when robot fell short.
+    default void onStepResult(String address, int step, int distanceErrorMillimeters, int headingErrorDegrees) {}
+
+    // Route of 'steps' steps is longer than a single command can carry
+    // (CommandParser.MAX_STEPS), it was not sent to any robot.
+    default void onRouteTooLong(int steps) {}
+
+    // Service was stopped from its notification and closes all links, screens bound to it
+    // should close as well.
+    default void onServiceStopping() {}
+}
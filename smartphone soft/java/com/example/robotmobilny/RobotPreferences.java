@@ -0,0 +1,34 @@
+package com.example.robotmobilny;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+// Remembers robots of the fleet we were connected to, so next start can skip scanning.
+class RobotPreferences {
+
+    private static final String FILE = "robot";
+    private static final String KEY_ROBOTS = "robots";
+
+    private final SharedPreferences preferences;
+
+    RobotPreferences(Context context) {
+        preferences = context.getSharedPreferences(FILE, Context.MODE_PRIVATE);
+    }
+
+    Set<String> getRobots() {
+        return new HashSet<>(preferences.getStringSet(KEY_ROBOTS, Collections.emptySet()));
+    }
+
+    void saveRobots(Collection<String> addresses) {
+        preferences.edit().putStringSet(KEY_ROBOTS, new HashSet<>(addresses)).apply();
+    }
+
+    void forget() {
+        preferences.edit().remove(KEY_ROBOTS).apply();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.robotmobilny;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Which protocol a robot speaks and how commands are turned into writes for it. Knows nothing
+// about Android, so the whole path from spoken text to bytes on the link can be run and
+// measured on a plain JVM: CommandParser -> RobotProtocol -> CommandQueue.
+class RobotProtocol {
+
+    private final MotionCodec codec = new MotionCodec();
+    // Negotiated at connect time, 0 means robot understands only ASCII commands.
+    private volatile int version;
+    private volatile int writeSize = MotionCodec.BLE_PAYLOAD_SIZE;
+
+    // Frames of the routes sent lately, repeated phrases and macros are not encoded again,
+    // binary frames only get a new sequence number. They depend on the protocol version, so
+    // the cache is dropped when it changes. Packing happens on every send, MTU may change.
+    private static final int ROUTE_CACHE_SIZE = 16;
+    private final LruMap<List<MotionStep>, List<byte[]>> encodedRoutes = new LruMap<>(ROUTE_CACHE_SIZE);
+
+    // Link went down, robot may come back with different firmware.
+    void reset() {
+        setVersion(0);
+        writeSize = MotionCodec.BLE_PAYLOAD_SIZE;
+    }
+
+    // Larger MTU lets more of a command go in a single write.
+    void setMtu(int mtu) {
+        writeSize = Math.max(MotionCodec.BLE_PAYLOAD_SIZE, mtu - MotionCodec.ATT_HEADER_SIZE);
+    }
+
+    int getVersion() {
+        return version;
+    }
+
+    // Returns true if 'line' was the robot's answer to VERSION_QUERY.
+    boolean onLine(String line) {
+        int announced = MotionCodec.parseVersionReply(line);
+        if (announced <= 0) return false;
+        setVersion(Math.min(announced, MotionCodec.VERSION));
+        return true;
+    }
+
+    private void setVersion(int version) {
+        synchronized (encodedRoutes) {
+            this.version = version;
+            encodedRoutes.clear();
+        }
+    }
+
+    List<byte[]> encodeRoute(List<MotionStep> steps) {
+        List<byte[]> frames;
+        int encodedVersion;
+        synchronized (encodedRoutes) {
+            frames = encodedRoutes.get(steps);
+            encodedVersion = version;
+        }
+        if (frames == null) {
+            frames = encodeFrames(steps, encodedVersion);
+            synchronized (encodedRoutes) {
+                if (version == encodedVersion) encodedRoutes.put(new ArrayList<>(steps), frames);
+            }
+        } else if (encodedVersion > 0) {
+            List<byte[]> restamped = new ArrayList<>(frames.size());
+            for (byte[] frame : frames) restamped.add(codec.restamp(frame));
+            frames = restamped;
+        }
+        // pack() copies, cached frames never leave this class
+        return pack(frames);
+    }
+
+    private List<byte[]> encodeFrames(List<MotionStep> steps, int version) {
+        List<byte[]> frames = new ArrayList<>();
+        if (version == 0) {
+            // Old firmware gets ASCII moves one by one.
+            for (MotionStep step : steps) {
+                frames.add(MotionCodec.encodeAsciiMove(step.direction, step.distance, step.speed));
+            }
+        } else if (steps.size() == 1) {
+            MotionStep step = steps.get(0);
+            frames.add(codec.encodeMove(step.direction, step.distance, step.speed));
+        } else {
+            // Binary protocol sends whole route in one frame.
+            frames.add(codec.encodeRoute(steps));
+        }
+        return frames;
+    }
+
+    // Robot reads a byte stream, so frames are packed back to back into as few writes as the
+    // negotiated MTU allows, longer ones are split. Null frames (not supported) are skipped.
+    List<byte[]> pack(List<byte[]> frames) {
+        int size = writeSize;
+        List<byte[]> writes = new ArrayList<>();
+        byte[] current = null;
+        int used = 0;
+        for (byte[] frame : frames) {
+            if (frame == null) continue;
+            for (int offset = 0; offset < frame.length; ) {
+                if (current == null || used == current.length) {
+                    if (current != null) writes.add(current);
+                    current = new byte[size];
+                    used = 0;
+                }
+                int length = Math.min(frame.length - offset, current.length - used);
+                System.arraycopy(frame, offset, current, used, length);
+                used += length;
+                offset += length;
+            }
+        }
+        if (current != null) writes.add(used == current.length ? current : Arrays.copyOf(current, used));
+        return writes;
+    }
+
+    byte[] encodeStop() {
+        return version > 0 ? codec.encodeStop() : MotionCodec.ASCII_STOP;
+    }
+
+    // Needs binary protocol, returns null if robot does not speak it.
+    byte[] encodeSonar(int periodMillis) {
+        return version > 0 ? codec.encodeSonar(periodMillis) : null;
+    }
+
+    byte[] encodeTelemetryRate(int hertz) {
+        return version > 0 ? codec.encodeTelemetryRate(hertz) : null;
+    }
+
+    byte[] encodeLimits(int acceleration, int maxSpeed) {
+        return version > 0 ? codec.encodeLimits(acceleration, maxSpeed) : null;
+    }
+}
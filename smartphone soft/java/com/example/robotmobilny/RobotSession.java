@@ -0,0 +1,399 @@
+package com.example.robotmobilny;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Connection with a single robot: its own write queue, protocol negotiation, reconnecting and
+// decoding of notifications. BleService keeps one per robot. The link itself is a RobotTransport,
+// so a session runs the same against a real robot and against the simulator.
+//
+// Link runs at high connection priority (short interval) while commands and their replies go
+// over it or the robot is moving and drops to low power after IDLE_TIMEOUT without them.
+// Telemetry does not count, the stream is on as long as the app shows it.
+class RobotSession {
+
+    static final long IDLE_TIMEOUT = 5000; // ms
+
+    // What a session needs from the service that owns it.
+    interface Host {
+        int getTelemetryRate();
+
+        // Limits of the robots' motion profile, 0 - firmware default.
+        int getMaxAcceleration();
+
+        int getMaxSpeed();
+
+        // Called on the transport's thread, must not allocate.
+        void dispatchTelemetry(Telemetry telemetry);
+
+        LatencyMetrics getMetrics();
+    }
+
+    private final String address;
+    private final RobotTransport transport;
+    private final Host host;
+    private final ListenerRegistry listeners;
+
+    // Set when link came up with cached handles and nothing was written through them yet.
+    private volatile boolean cachedHandlesUnverified;
+
+    private final CommandQueue commandQueue;
+    private final ConnectionManager connectionManager;
+    private final RobotProtocol protocol = new RobotProtocol();
+    private final Scheduler scheduler;
+
+    private final LinkStats linkStats = new LinkStats();
+    private volatile long lastActivity; // nanos
+    private volatile boolean moving; // between robot's "Towards"/"Left"... and "Finish"/"Stopped"
+    private volatile boolean highPriority; // written under linkStats
+    private final Runnable idleTask = this::onIdleCheck;
+
+    // Traces of commands on their way, found by the first and last chunk written and, once
+    // the robot echoes ACK frames, by the frame sequence. Guarded by 'traces'.
+    private final LatencyMetrics metrics;
+    private final Map<byte[], LatencyMetrics.Trace> traces = new IdentityHashMap<>();
+    private final Map<byte[], LatencyMetrics.Trace> lastChunks = new IdentityHashMap<>();
+    private final LatencyMetrics.Trace[] tracesBySequence = new LatencyMetrics.Trace[256];
+    private LatencyMetrics.Trace asciiTrace; // old firmware has no ACK, its text replies are used
+
+    // Notifications are decoded into reused buffers and handed to listeners directly,
+    // high rate telemetry must not allocate.
+    private final Telemetry telemetry;
+    private final FrameReader frameReader = new FrameReader(new FrameReader.Callback() {
+        @Override
+        public void onFrame(int opcode, int sequence, byte[] buffer, int payloadOffset, int payloadLength) {
+            if (opcode == MotionCodec.OP_TELEMETRY) {
+                if (telemetry.decode(sequence, buffer, payloadOffset, payloadLength)) host.dispatchTelemetry(telemetry);
+                return;
+            }
+            touch();
+            if (opcode == MotionCodec.OP_ACK && payloadLength >= MotionCodec.ACK_PAYLOAD_SIZE) {
+                onAck(buffer, payloadOffset);
+            } else if (opcode == MotionCodec.OP_STEP_RESULT && payloadLength >= MotionCodec.STEP_RESULT_PAYLOAD_SIZE) {
+                // [route step][distance error mm int16 LE][heading error deg int16 LE]
+                int distanceError = (short) ((buffer[payloadOffset + 1] & 0xFF) | (buffer[payloadOffset + 2] << 8));
+                int headingError = (short) ((buffer[payloadOffset + 3] & 0xFF) | (buffer[payloadOffset + 4] << 8));
+                listeners.dispatchStepResult(address, buffer[payloadOffset] & 0xFF, distanceError, headingError);
+            }
+        }
+
+        @Override
+        public void onLine(String line) {
+            touch();
+            if (protocol.onLine(line)) {
+                // Settings the robot has to be told again go in as few writes as MTU allows.
+                int telemetryRate = host.getTelemetryRate();
+                int acceleration = host.getMaxAcceleration(), maxSpeed = host.getMaxSpeed();
+                offer(protocol.pack(Arrays.asList(
+                        telemetryRate > 0 ? protocol.encodeTelemetryRate(telemetryRate) : null,
+                        acceleration > 0 || maxSpeed > 0 ? protocol.encodeLimits(acceleration, maxSpeed) : null)));
+                return;
+            }
+            if (isStartReply(line)) {
+                moving = true;
+            } else if (isFinishReply(line)) {
+                moving = false;
+            }
+            if (protocol.getVersion() == 0) onAsciiReply(line);
+            listeners.dispatchMessage(address, line);
+        }
+    });
+
+    private final RobotTransport.Listener transportListener = new RobotTransport.Listener() {
+        @Override
+        public void onConnected() {
+            connectionManager.onConnected();
+        }
+
+        @Override
+        public void onDisconnected() {
+            connectionManager.onDisconnected();
+        }
+
+        @Override
+        public void onServicesDiscovered(boolean success) {
+            connectionManager.onServicesDiscovered(success);
+        }
+
+        @Override
+        public void onWriteComplete(boolean success) {
+            linkStats.onWriteComplete(success, System.nanoTime());
+            if (cachedHandlesUnverified) {
+                cachedHandlesUnverified = false;
+                if (!success) {
+                    // Robot's GATT table differs from the cached one, discover it again.
+                    transport.invalidateServices();
+                    connectionManager.onServicesInvalid();
+                }
+            }
+            commandQueue.onWriteComplete(success);
+        }
+
+        @Override
+        public void onReceive(byte[] data, int offset, int length) {
+            frameReader.feed(data, offset, length);
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, boolean success) {
+            protocol.setMtu(mtu);
+            linkStats.setMtu(mtu);
+            connectionManager.onMtuChanged();
+        }
+    };
+
+    RobotSession(String address, RobotTransport transport, Scheduler scheduler, Host host,
+                 ListenerRegistry listeners) {
+        this.address = address;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.host = host;
+        this.listeners = listeners;
+        this.telemetry = new Telemetry(address);
+        this.metrics = host.getMetrics();
+
+        transport.setListener(transportListener);
+        commandQueue = new CommandQueue(this::write, scheduler);
+        commandQueue.setCallback(new CommandQueue.Callback() {
+            @Override
+            public void onCommandIssued(byte[] frame) {
+                LatencyMetrics.Trace trace;
+                synchronized (traces) {
+                    trace = traces.remove(frame);
+                }
+                if (trace != null) metrics.mark(trace, LatencyMetrics.Stage.WRITE_ISSUED);
+            }
+
+            @Override
+            public void onCommandWritten(byte[] frame) {
+                LatencyMetrics.Trace trace;
+                synchronized (traces) {
+                    trace = lastChunks.remove(frame);
+                }
+                if (trace != null) metrics.mark(trace, LatencyMetrics.Stage.WRITE_ACKED);
+                listeners.dispatchWriteResult(address, frame, true);
+            }
+
+            @Override
+            public void onCommandFailed(byte[] frame) {
+                synchronized (traces) {
+                    traces.remove(frame);
+                    lastChunks.remove(frame);
+                }
+                listeners.dispatchWriteResult(address, frame, false);
+            }
+        });
+
+        connectionManager = new ConnectionManager(transport, scheduler, new ConnectionManager.Callback() {
+            @Override
+            public void onReady(boolean fromCache) {
+                cachedHandlesUnverified = fromCache;
+                transport.enableNotifications();
+                commandQueue.start();
+                // Ask robot whether it understands binary frames, old firmware ignores this.
+                commandQueue.offer(MotionCodec.VERSION_QUERY);
+                listeners.dispatchConnectionState(address, true);
+            }
+
+            @Override
+            public void onLost() {
+                commandQueue.stop();
+                frameReader.reset();
+                protocol.reset();
+                clearTraces();
+                linkStats.onLost(System.nanoTime());
+                moving = false;
+                synchronized (linkStats) {
+                    highPriority = false;
+                    linkStats.setHighPriority(false);
+                }
+                scheduler.cancel(idleTask);
+                listeners.dispatchConnectionState(address, false);
+            }
+        });
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    int getProtocolVersion() {
+        return protocol.getVersion();
+    }
+
+    LinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    void connect() {
+        connectionManager.connect(address);
+    }
+
+    void close() {
+        scheduler.cancel(idleTask);
+        connectionManager.close();
+        commandQueue.stop();
+        transport.close();
+    }
+
+    // Encoding is separated from offering, so one command can be prepared for every robot
+    // of the fleet first and then queued for all of them at once.
+    List<byte[]> encodeRoute(List<MotionStep> steps) {
+        return protocol.encodeRoute(steps);
+    }
+
+    byte[] encodeStop() {
+        return protocol.encodeStop();
+    }
+
+    // Needs binary protocol, returns null if robot does not speak it.
+    byte[] encodeSonar(int periodMillis) {
+        return protocol.encodeSonar(periodMillis);
+    }
+
+    byte[] encodeTelemetryRate(int hertz) {
+        return protocol.encodeTelemetryRate(hertz);
+    }
+
+    byte[] encodeLimits(int acceleration, int maxSpeed) {
+        return protocol.encodeLimits(acceleration, maxSpeed);
+    }
+
+    // Returns false if the queue is full and (part of) the command was dropped.
+    boolean offer(List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            if (!offer(frame)) return false;
+        }
+        return true;
+    }
+
+    boolean offer(byte[] frame) {
+        return frame != null && commandQueue.offer(frame);
+    }
+
+    // Same as offer(frames), timing of the command is recorded into 'trace'.
+    boolean offer(List<byte[]> frames, LatencyMetrics.Trace trace) {
+        if (frames.isEmpty()) return true;
+        byte[] first = frames.get(0);
+        boolean binary = (first[0] & 0xFF) == MotionCodec.SYNC;
+        synchronized (traces) {
+            traces.put(first, trace);
+            lastChunks.put(frames.get(frames.size() - 1), trace);
+            if (binary) {
+                trace.sequence = first[3] & 0xFF;
+                tracesBySequence[trace.sequence] = trace;
+            } else {
+                asciiTrace = trace;
+            }
+        }
+        metrics.mark(trace, LatencyMetrics.Stage.QUEUED);
+        return offer(frames);
+    }
+
+    // [sequence][event][robot millis uint32 LE]
+    private void onAck(byte[] buffer, int offset) {
+        int sequence = buffer[offset] & 0xFF;
+        int event = buffer[offset + 1];
+        long robotMillis = (buffer[offset + 2] & 0xFFL) | (buffer[offset + 3] & 0xFFL) << 8
+                | (buffer[offset + 4] & 0xFFL) << 16 | (buffer[offset + 5] & 0xFFL) << 24;
+
+        LatencyMetrics.Trace trace;
+        synchronized (traces) {
+            trace = tracesBySequence[sequence];
+            if (event == MotionCodec.ACK_FINISHED) tracesBySequence[sequence] = null;
+        }
+        if (trace == null) return;
+
+        switch (event) {
+            case MotionCodec.ACK_RECEIVED:
+                metrics.markRobot(trace, LatencyMetrics.Stage.ROBOT_RECEIVED, robotMillis);
+                break;
+            case MotionCodec.ACK_STARTED:
+                metrics.markRobot(trace, LatencyMetrics.Stage.ROBOT_STARTED, robotMillis);
+                break;
+            case MotionCodec.ACK_FINISHED:
+                metrics.markRobot(trace, LatencyMetrics.Stage.ROBOT_FINISHED, robotMillis);
+                break;
+        }
+    }
+
+    private void onAsciiReply(String line) {
+        LatencyMetrics.Trace trace;
+        synchronized (traces) {
+            trace = asciiTrace;
+        }
+        if (trace == null) return;
+
+        if (isStartReply(line)) {
+            metrics.mark(trace, LatencyMetrics.Stage.ROBOT_STARTED);
+        } else if (isFinishReply(line)) {
+            metrics.mark(trace, LatencyMetrics.Stage.ROBOT_FINISHED);
+            synchronized (traces) {
+                if (asciiTrace == trace) asciiTrace = null;
+            }
+        }
+    }
+
+    // Robot announces every step it starts and the end of the route, in both protocols.
+    static boolean isStartReply(String line) {
+        return line.startsWith("Towards") || line.startsWith("Back") || line.startsWith("Right")
+                || line.startsWith("Left");
+    }
+
+    static boolean isFinishReply(String line) {
+        return line.startsWith("Finish") || line.startsWith("Stopped");
+    }
+
+    // Writer of the command queue, every write counts into link statistics.
+    private boolean write(byte[] frame, boolean withResponse) {
+        linkStats.onWrite(frame.length, System.nanoTime());
+        if (!transport.write(frame, withResponse)) {
+            linkStats.onWriteRefused(frame.length);
+            return false;
+        }
+        touch();
+        return true;
+    }
+
+    // Called for every write and every reply, so it only stamps the time unless the link has
+    // to be switched to high priority.
+    private void touch() {
+        lastActivity = System.nanoTime();
+        if (highPriority) return;
+        synchronized (linkStats) {
+            if (highPriority) return;
+            highPriority = true;
+            linkStats.setHighPriority(true);
+        }
+        transport.setHighPriority(true);
+        scheduler.schedule(idleTask, IDLE_TIMEOUT);
+    }
+
+    private void onIdleCheck() {
+        long idle = (System.nanoTime() - lastActivity) / 1000000;
+        if (moving || idle < IDLE_TIMEOUT) {
+            scheduler.schedule(idleTask, moving ? IDLE_TIMEOUT : IDLE_TIMEOUT - idle);
+            return;
+        }
+        synchronized (linkStats) {
+            highPriority = false;
+            linkStats.setHighPriority(false);
+        }
+        transport.setHighPriority(false);
+    }
+
+    private void clearTraces() {
+        synchronized (traces) {
+            traces.clear();
+            lastChunks.clear();
+            Arrays.fill(tracesBySequence, null);
+            asciiTrace = null;
+        }
+    }
+
+    void setWriteWithoutResponse(boolean enabled, int pipelineDepth) {
+        commandQueue.setWriteWithoutResponse(enabled, pipelineDepth);
+    }
+}
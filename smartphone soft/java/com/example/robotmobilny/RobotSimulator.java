@@ -0,0 +1,415 @@
+package com.example.robotmobilny;
+
+import java.nio.charset.StandardCharsets;
+
+// Firmware of the robot (soft.ino) replayed on the JVM: same frames and ASCII commands, same
+// replies ("Towards 50", "Step 1/2", "Obstacle 14", "Finish"...), same motion profile (wheels
+// accelerate, blend straight segments and brake as in firmware) and the telemetry stream.
+// Time is virtual, it advances by TICK_PERIOD on every tick run by the Scheduler, so with
+// a fake scheduler long routes are simulated in no time.
+//
+// Ultrasonic sensor sees a single obstacle set by setObstacleDistance(), it comes closer
+// while the robot drives towards it and is left behind once the robot turns. Wheels are
+// ideal, so STEP_RESULT frames report an error only for steps cut short by an obstacle.
+class RobotSimulator {
+
+    interface Output {
+        // Bytes robot writes to its serial port, 'data' is not reused.
+        void send(byte[] data);
+    }
+
+    static final int TICK_PERIOD = 10; // ms, as TickPeriod in firmware
+    static final int OBSTACLE_STOP_DISTANCE = 15; // cm
+    static final int MAX_SONAR_DISTANCE = 200; // cm
+    static final int MAX_TELEMETRY_RATE = 50; // Hz
+    static final int CONTROL_PERIOD = 50; // ms
+    static final double MAX_WHEEL_SPEED = 16; // cm/s at full PWM
+    static final double TURN_RADIUS = 9.5; // cm
+    static final double DEFAULT_ACCELERATION = 30; // cm/s^2
+    static final double MIN_PROFILE_SPEED = 2; // cm/s
+
+    private static final int IDLE = 0;
+    private static final int TURNING = 1;
+    private static final int DRIVING = 2;
+
+    private final Scheduler scheduler;
+    private final Output output;
+    private final Runnable tickTask = this::tick;
+    private boolean running;
+
+    private long now; // ms of virtual time since start()
+
+    private final MotionStep[] route = new MotionStep[CommandParser.MAX_STEPS];
+    private int routeLength;
+    private int routeStep;
+
+    private int phase = IDLE;
+    private MotionStep step;
+    private int turnDegrees;
+    private int heading;
+    private int routeSequence = -1; // of the binary command being run, -1 for ASCII ones
+
+    private double obstacleDistance = MAX_SONAR_DISTANCE;
+    private double drivenInPhase;
+
+    // Trapezoidal profile of the current segment, wheels are ideal and follow it exactly.
+    private double segmentDistance; // cm
+    private double position;        // cm
+    private double velocity;        // cm/s
+    private double cruise;          // cm/s
+    private double exitVelocity;    // cm/s
+    private double maxAcceleration = DEFAULT_ACCELERATION;
+    private int maxSpeed = 255;
+    private long lastControl;
+
+    private long telemetryPeriod; // ms, 0 - off
+    private long lastTelemetry;
+    private int txSequence;
+
+    private final FrameReader reader = new FrameReader(new FrameReader.Callback() {
+        @Override
+        public void onFrame(int opcode, int sequence, byte[] buffer, int payloadOffset, int payloadLength) {
+            handleFrame(opcode, sequence, buffer, payloadOffset, payloadLength);
+        }
+
+        @Override
+        public void onLine(String line) {
+            handleLine(line);
+        }
+    });
+
+    RobotSimulator(Scheduler scheduler, Output output) {
+        this.scheduler = scheduler;
+        this.output = output;
+    }
+
+    // Power on.
+    synchronized void start() {
+        if (running) return;
+        running = true;
+        scheduler.schedule(tickTask, TICK_PERIOD);
+    }
+
+    // Power off, robot forgets the route it was running.
+    synchronized void stop() {
+        running = false;
+        scheduler.cancel(tickTask);
+        phase = IDLE;
+        routeLength = routeStep = 0;
+        telemetryPeriod = 0;
+        reader.reset();
+    }
+
+    // Bytes arriving from the BLE module.
+    synchronized void receive(byte[] data, int offset, int length) {
+        reader.feed(data, offset, length);
+    }
+
+    synchronized void setObstacleDistance(int centimeters) {
+        obstacleDistance = centimeters;
+    }
+
+    synchronized long getTime() {
+        return now;
+    }
+
+    synchronized int getHeading() {
+        return heading;
+    }
+
+    synchronized boolean isMoving() {
+        return phase != IDLE;
+    }
+
+    private void tick() {
+        synchronized (this) {
+            if (!running) return;
+            now += TICK_PERIOD;
+            updateMotion();
+            if (telemetryPeriod > 0 && now - lastTelemetry >= telemetryPeriod) {
+                lastTelemetry = now;
+                sendTelemetry();
+            }
+            scheduler.schedule(tickTask, TICK_PERIOD);
+        }
+    }
+
+    private void handleLine(String line) {
+        if (line.isEmpty()) return;
+        switch (line.charAt(0)) {
+            case 'M': // M<direction>;<distance>;<speed>;
+                String[] params = line.substring(1).split(";");
+                if (params.length < 3 || params[0].isEmpty()) return;
+                try {
+                    route[0] = new MotionStep(params[0].charAt(0), Integer.parseInt(params[1].trim()),
+                            Integer.parseInt(params[2].trim()) & 0xFF);
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                if (!isValid(route[0])) return;
+                routeSequence = -1;
+                startRoute(1);
+                break;
+            case 'S':
+                stopMotion();
+                break;
+            case 'V':
+                println("V" + MotionCodec.VERSION);
+                break;
+        }
+    }
+
+    private void handleFrame(int opcode, int sequence, byte[] buffer, int offset, int length) {
+        switch (opcode) {
+            case MotionCodec.OP_MOVE:
+                if (length < MotionCodec.MOVE_PAYLOAD_SIZE || !isValid(decodeStep(buffer, offset))) return;
+                sendAck(sequence, MotionCodec.ACK_RECEIVED);
+                route[0] = decodeStep(buffer, offset);
+                routeSequence = sequence;
+                startRoute(1);
+                break;
+
+            case MotionCodec.OP_STOP:
+                sendAck(sequence, MotionCodec.ACK_RECEIVED);
+                stopMotion();
+                sendAck(sequence, MotionCodec.ACK_FINISHED);
+                break;
+
+            case MotionCodec.OP_SONAR:
+                println("Sonar " + sonarDistance());
+                break;
+
+            case MotionCodec.OP_TELEMETRY:
+                int rate = length >= 1 ? Math.min(buffer[offset] & 0xFF, MAX_TELEMETRY_RATE) : 0;
+                telemetryPeriod = rate > 0 ? 1000 / rate : 0;
+                break;
+
+            case MotionCodec.OP_ROUTE:
+                int count = length >= 1 ? buffer[offset] & 0xFF : 0;
+                if (count == 0 || count > route.length || length < 1 + count * MotionCodec.MOVE_PAYLOAD_SIZE) return;
+                for (int i = 0; i < count; i++) {
+                    if (!isValid(decodeStep(buffer, offset + 1 + i * MotionCodec.MOVE_PAYLOAD_SIZE))) return;
+                }
+                sendAck(sequence, MotionCodec.ACK_RECEIVED);
+                routeSequence = sequence;
+                for (int i = 0; i < count; i++) {
+                    route[i] = decodeStep(buffer, offset + 1 + i * MotionCodec.MOVE_PAYLOAD_SIZE);
+                }
+                startRoute(count);
+                break;
+
+            case MotionCodec.OP_LIMITS:
+                if (length < MotionCodec.LIMITS_PAYLOAD_SIZE) return;
+                int acceleration = (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+                maxAcceleration = acceleration > 0 ? acceleration : DEFAULT_ACCELERATION;
+                maxSpeed = (buffer[offset + 2] & 0xFF) > 0 ? buffer[offset + 2] & 0xFF : 255;
+                break;
+        }
+    }
+
+    private static MotionStep decodeStep(byte[] buffer, int offset) {
+        int distance = (short) ((buffer[offset + 1] & 0xFF) | (buffer[offset + 2] << 8));
+        return new MotionStep((char) (buffer[offset] & 0xFF), distance, buffer[offset + 3] & 0xFF);
+    }
+
+    // Speed 0 would never get the robot anywhere, the whole command is refused then.
+    private static boolean isValid(MotionStep step) {
+        return step.speed > 0;
+    }
+
+    private void startRoute(int length) {
+        routeLength = length;
+        routeStep = 0;
+        beginStep(route[routeStep++], false);
+        if (routeSequence >= 0 && phase != IDLE) sendAck(routeSequence, MotionCodec.ACK_STARTED);
+    }
+
+    private void stopMotion() {
+        phase = IDLE;
+        velocity = 0;
+        routeLength = routeStep = 0;
+        routeSequence = -1;
+        println("Stopped");
+    }
+
+    // 'continued' - step follows the previous one of the same route, not a step that was cut short.
+    private void beginStep(MotionStep next, boolean continued) {
+        step = next;
+        if (routeLength > 1) println("Step " + routeStep + "/" + routeLength);
+
+        switch (next.direction) {
+            case 'T':
+                println("Towards " + next.distance);
+                startDriving(continued);
+                return;
+            case 'B':
+                println("Back " + next.distance);
+                startTurning(180, Math.PI);
+                return;
+            case 'R':
+                println("Right " + next.distance);
+                startTurning(-90, Math.PI / 2);
+                return;
+            case 'L':
+                println("Left " + next.distance);
+                startTurning(90, Math.PI / 2);
+                return;
+        }
+        // unknown direction, skip the step
+        finishStep();
+    }
+
+    private void startTurning(int degrees, double angle) {
+        phase = TURNING;
+        turnDegrees = degrees;
+        startSegment(angle * TURN_RADIUS, false, 0, 0);
+    }
+
+    private void startDriving(boolean continued) {
+        boolean blend = phase == DRIVING && velocity > 0;
+        // As in firmware: next step of the route counts what was run past the end of the
+        // previous one, a new route replacing a drive counts from where the robot is now.
+        double carried = blend && continued ? position - segmentDistance : 0;
+        double exit = routeStep < routeLength && route[routeStep].direction == 'T'
+                ? cruiseVelocity(route[routeStep].speed) : 0;
+        phase = DRIVING;
+        startSegment(step.distance, blend, carried, exit);
+        drivenInPhase = position;
+    }
+
+    private void startSegment(double distance, boolean blend, double carried, double exit) {
+        if (!blend) {
+            velocity = 0;
+            lastControl = now;
+        }
+        segmentDistance = distance;
+        position = carried;
+        cruise = cruiseVelocity(step.speed);
+        exitVelocity = Math.min(exit, cruise);
+    }
+
+    // As advanceProfile() in firmware.
+    private void advanceProfile(double dt) {
+        double remaining = segmentDistance - position;
+        double braking = (velocity * velocity - exitVelocity * exitVelocity) / (2 * maxAcceleration);
+        if (remaining <= braking) {
+            velocity = Math.max(velocity - maxAcceleration * dt, Math.max(exitVelocity, MIN_PROFILE_SPEED));
+        } else if (velocity > cruise) {
+            velocity = Math.max(velocity - maxAcceleration * dt, cruise);
+        } else {
+            velocity = Math.min(velocity + maxAcceleration * dt, cruise);
+        }
+        position = Math.min(position + velocity * dt, segmentDistance);
+    }
+
+    private double cruiseVelocity(int speed) {
+        return MAX_WHEEL_SPEED * Math.min(speed, maxSpeed) / 255;
+    }
+
+    private void updateMotion() {
+        if (phase != IDLE && now - lastControl >= CONTROL_PERIOD) {
+            advanceProfile((now - lastControl) / 1000.0);
+            lastControl = now;
+        }
+        switch (phase) {
+            case TURNING:
+                if (position >= segmentDistance) {
+                    heading += turnDegrees;
+                    if (heading > 180) heading -= 360;
+                    if (heading <= -180) heading += 360;
+                    // Obstacle stays behind, the way ahead is free.
+                    obstacleDistance = MAX_SONAR_DISTANCE;
+                    startDriving(false);
+                }
+                break;
+
+            case DRIVING:
+                obstacleDistance = Math.max(0, obstacleDistance - (position - drivenInPhase));
+                drivenInPhase = position;
+
+                if (sonarDistance() <= OBSTACLE_STOP_DISTANCE) {
+                    println("Obstacle " + sonarDistance());
+                    velocity = 0;
+                    finishStep();
+                } else if (position >= segmentDistance) {
+                    finishStep();
+                }
+                break;
+        }
+    }
+
+    private void finishStep() {
+        sendStepResult();
+        if (routeStep < routeLength) {
+            beginStep(route[routeStep++], true);
+            return;
+        }
+        phase = IDLE;
+        velocity = 0;
+        routeLength = routeStep = 0;
+        println("Finish");
+        if (routeSequence >= 0) sendAck(routeSequence, MotionCodec.ACK_FINISHED);
+        routeSequence = -1;
+    }
+
+    private int sonarDistance() {
+        return (int) Math.min(MAX_SONAR_DISTANCE, Math.round(obstacleDistance));
+    }
+
+    // Same layout as sendTelemetry() in firmware, see Telemetry.java.
+    private void sendTelemetry() {
+        int stepDistance = phase == DRIVING ? (int) Math.round(drivenInPhase) : 0;
+        int pwm = (int) Math.round(velocity * 255 / MAX_WHEEL_SPEED);
+        int obstacle = sonarDistance();
+
+        byte[] payload = new byte[Telemetry.PAYLOAD_SIZE];
+        int i = 0;
+        payload[i++] = (byte) stepDistance;
+        payload[i++] = (byte) (stepDistance >> 8);
+        payload[i++] = (byte) heading;
+        payload[i++] = (byte) (heading >> 8);
+        payload[i++] = (byte) obstacle;
+        payload[i++] = (byte) (obstacle >> 8);
+        payload[i++] = (byte) pwm;
+        payload[i++] = (byte) pwm;
+        payload[i++] = 0; // loop time, simulator has no loop to measure
+        payload[i++] = 0;
+        payload[i++] = (byte) routeStep;
+        payload[i] = (byte) phase;
+        sendFrame(MotionCodec.OP_TELEMETRY, payload);
+    }
+
+    // [route step][distance error mm int16 LE][heading error deg int16 LE], as sendStepResult()
+    // in firmware.
+    private void sendStepResult() {
+        if (routeSequence < 0) return;
+        int distanceError = phase == DRIVING ? (int) Math.round((step.distance - drivenInPhase) * 10) : 0;
+        sendFrame(MotionCodec.OP_STEP_RESULT, new byte[]{(byte) routeStep,
+                (byte) distanceError, (byte) (distanceError >> 8), 0, 0});
+    }
+
+    // [sequence][event][robot millis uint32 LE], as sendAck() in firmware.
+    private void sendAck(int sequence, int event) {
+        sendFrame(MotionCodec.OP_ACK, new byte[]{(byte) sequence, (byte) event,
+                (byte) now, (byte) (now >> 8), (byte) (now >> 16), (byte) (now >> 24)});
+    }
+
+    private void sendFrame(int opcode, byte[] payload) {
+        byte[] frame = new byte[MotionCodec.HEADER_SIZE + payload.length + MotionCodec.CRC_SIZE];
+        frame[0] = (byte) MotionCodec.SYNC;
+        frame[1] = (byte) MotionCodec.VERSION;
+        frame[2] = (byte) opcode;
+        frame[3] = (byte) txSequence;
+        frame[4] = (byte) payload.length;
+        txSequence = (txSequence + 1) & 0xFF;
+
+        System.arraycopy(payload, 0, frame, MotionCodec.HEADER_SIZE, payload.length);
+        int crcIndex = MotionCodec.HEADER_SIZE + payload.length;
+        frame[crcIndex] = (byte) MotionCodec.crc8(frame, 1, crcIndex - 1);
+        output.send(frame);
+    }
+
+    private void println(String line) {
+        output.send((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.robotmobilny;
+
+// Link to a single robot as RobotSession sees it: GATT on the phone (GattTransport) or
+// the firmware simulator on any JVM (SimulatedTransport).
+interface RobotTransport extends ConnectionManager.Adapter {
+
+    interface Listener {
+        void onConnected();
+
+        void onDisconnected();
+
+        void onServicesDiscovered(boolean success);
+
+        // Previous write() was delivered (or failed), next one may be issued.
+        void onWriteComplete(boolean success);
+
+        // Bytes sent by the robot, 'data' may be reused after returning.
+        void onReceive(byte[] data, int offset, int length);
+
+        // Answer to requestMtu(), 'mtu' is the one in effect either way.
+        void onMtuChanged(int mtu, boolean success);
+    }
+
+    void setListener(Listener listener);
+
+    // Robot's replies come as notifications, call once the link is ready.
+    void enableNotifications();
+
+    // Hands a single frame (or chunk) to the link, result comes via onWriteComplete.
+    boolean write(byte[] frame, boolean withResponse);
+
+    // Short connection interval while driving, power saving one while the robot is idle.
+    void setHighPriority(boolean high);
+
+    // Cached characteristic handles turned out to be stale.
+    void invalidateServices();
+
+    // Releases the link for good.
+    void close();
+}
@@ -0,0 +1,10 @@
+package com.example.robotmobilny;
+
+// Minimal abstraction over Handler.postDelayed/removeCallbacks, so classes driving
+// the BLE link can be run by a fake clock outside of Android.
+interface Scheduler {
+
+    void schedule(Runnable task, long delayMillis);
+
+    void cancel(Runnable task);
+}
@@ -0,0 +1,216 @@
+package com.example.robotmobilny;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// RobotTransport connected to RobotSimulator instead of a real robot. Link delay and packet
+// loss can be injected, so latency, throughput and loss of the whole command path can be
+// measured on any JVM. Everything happens on the Scheduler, with a fake one runs are
+// deterministic (losses come from a seeded Random).
+//
+// BleService uses it for addresses starting with ADDRESS_PREFIX, e.g. "SIM:01". The app gets
+// such addresses from AccessBleActivity, see intentSimulatedKey.
+class SimulatedTransport implements RobotTransport {
+
+    static final String ADDRESS_PREFIX = "SIM";
+
+    // Notification size of the robot's BLE module, longer replies are cut like on real link.
+    static final int NOTIFICATION_SIZE = 20;
+    static final int MAX_MTU = 185; // typical for phones with data length extension
+    // Power saving connection interval delays every packet by this much more, one way.
+    static final long LOW_POWER_DELAY = 50; // ms
+
+    private final Scheduler scheduler;
+    private final RobotSimulator robot;
+    private final Random random;
+    private Listener listener;
+
+    private volatile long linkDelay = 15; // ms, one way
+    private volatile double lossRate;     // 0..1, for writes and notifications alike
+
+    private boolean connected;
+    private boolean servicesKnown;
+    private volatile boolean highPriority;
+
+    // Link statistics.
+    private int writes;
+    private int lostWrites;
+    private int notifications;
+    private int lostNotifications;
+
+    SimulatedTransport(Scheduler scheduler, long seed) {
+        this.scheduler = scheduler;
+        this.random = new Random(seed);
+        this.robot = new RobotSimulator(scheduler, this::notifyPhone);
+    }
+
+    static boolean isSimulated(String address) {
+        return address.startsWith(ADDRESS_PREFIX);
+    }
+
+    RobotSimulator getRobot() {
+        return robot;
+    }
+
+    void setLinkDelay(long millis) {
+        linkDelay = millis;
+    }
+
+    void setLossRate(double rate) {
+        lossRate = rate;
+    }
+
+    synchronized int getWrites() {
+        return writes;
+    }
+
+    synchronized int getLostWrites() {
+        return lostWrites;
+    }
+
+    synchronized int getNotifications() {
+        return notifications;
+    }
+
+    synchronized int getLostNotifications() {
+        return lostNotifications;
+    }
+
+    // Robot goes out of range, link drops without warning.
+    void dropLink() {
+        synchronized (this) {
+            if (!connected) return;
+            connected = false;
+        }
+        robot.stop();
+        listener.onDisconnected();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public boolean connect(String address) {
+        highPriority = false;
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                connected = true;
+            }
+            robot.start();
+            listener.onConnected();
+        }, 2 * linkDelay);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean hasCachedServices() {
+        return servicesKnown;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                servicesKnown = true;
+            }
+            listener.onServicesDiscovered(true);
+        }, 2 * linkDelay);
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        scheduler.schedule(() -> listener.onMtuChanged(Math.min(mtu, MAX_MTU), true), 2 * linkDelay);
+        return true;
+    }
+
+    @Override
+    public void setHighPriority(boolean high) {
+        highPriority = high;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            if (!connected) return;
+            connected = false;
+        }
+        robot.stop();
+        scheduler.schedule(listener::onDisconnected, linkDelay);
+    }
+
+    @Override
+    public void enableNotifications() {
+    }
+
+    @Override
+    public boolean write(byte[] frame, boolean withResponse) {
+        boolean lost;
+        synchronized (this) {
+            if (!connected) return false;
+            writes++;
+            lost = random.nextDouble() < lossRate;
+            if (lost) lostWrites++;
+        }
+
+        byte[] data = Arrays.copyOf(frame, frame.length);
+        long delay = delay();
+        if (!lost) scheduler.schedule(() -> deliverToRobot(data), delay);
+
+        if (withResponse) {
+            // Acknowledgement makes the round trip, a lost write is reported as failed.
+            scheduler.schedule(() -> listener.onWriteComplete(!lost), 2 * delay);
+        } else {
+            // Local stack accepts it right away, loss goes unnoticed.
+            scheduler.schedule(() -> listener.onWriteComplete(true), 1);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void invalidateServices() {
+        servicesKnown = false;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            connected = false;
+            servicesKnown = false;
+        }
+        robot.stop();
+    }
+
+    private long delay() {
+        return highPriority ? linkDelay : linkDelay + LOW_POWER_DELAY;
+    }
+
+    private void deliverToRobot(byte[] data) {
+        synchronized (this) {
+            if (!connected) return;
+        }
+        robot.receive(data, 0, data.length);
+    }
+
+    private void notifyPhone(byte[] data) {
+        for (int offset = 0; offset < data.length; offset += NOTIFICATION_SIZE) {
+            byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + NOTIFICATION_SIZE));
+            boolean lost;
+            synchronized (this) {
+                notifications++;
+                lost = random.nextDouble() < lossRate;
+                if (lost) lostNotifications++;
+            }
+            if (!lost) scheduler.schedule(() -> deliverToPhone(chunk), delay());
+        }
+    }
+
+    private void deliverToPhone(byte[] chunk) {
+        synchronized (this) {
+            if (!connected) return;
+        }
+        listener.onReceive(chunk, 0, chunk.length);
+    }
+}
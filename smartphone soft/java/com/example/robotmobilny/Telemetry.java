@@ -0,0 +1,50 @@
+package com.example.robotmobilny;
+
+// Latest telemetry sample reported by the robot. Single instance is decoded in place
+// for every frame, listeners must copy what they need before returning.
+class Telemetry {
+
+    interface Listener {
+        // Called on the Bluetooth thread, keep it short and allocation free.
+        void onTelemetry(Telemetry telemetry);
+    }
+
+    // TELEMETRY payload, all multi-byte values little endian:
+    // [step distance uint16][heading int16][obstacle uint16][left pwm][right pwm]
+    // [max loop time uint16][route step][motion phase]
+    static final int PAYLOAD_SIZE = 12;
+
+    final String address; // robot which sent the sample
+
+    int sequence;
+    int stepDistance; // cm driven in the current step, estimated
+    int heading;      // degrees, relative to orientation at power up
+    int obstacleDistance; // cm, filtered
+    int leftPwm;
+    int rightPwm;
+    int maxLoopMicros; // longest loop() pass since previous sample
+    int routeStep;
+    int phase; // 0 idle, 1 turning, 2 driving
+
+    Telemetry(String address) {
+        this.address = address;
+    }
+
+    boolean decode(int sequence, byte[] buffer, int offset, int length) {
+        if (length < PAYLOAD_SIZE) return false;
+        this.sequence = sequence;
+        stepDistance = uint16(buffer, offset);
+        heading = (short) uint16(buffer, offset + 2);
+        obstacleDistance = uint16(buffer, offset + 4);
+        leftPwm = buffer[offset + 6] & 0xFF;
+        rightPwm = buffer[offset + 7] & 0xFF;
+        maxLoopMicros = uint16(buffer, offset + 8);
+        routeStep = buffer[offset + 10] & 0xFF;
+        phase = buffer[offset + 11] & 0xFF;
+        return true;
+    }
+
+    private static int uint16(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+    }
+}
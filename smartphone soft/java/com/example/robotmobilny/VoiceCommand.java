@@ -0,0 +1,30 @@
+package com.example.robotmobilny;
+
+import java.util.Collections;
+import java.util.List;
+
+// What the robot was told to do, as understood from one or more recognizer hypotheses.
+class VoiceCommand {
+
+    enum Kind { NONE, STOP, ROUTE }
+
+    static final VoiceCommand NONE = new VoiceCommand(Kind.NONE, Collections.emptyList(), 0, "");
+
+    final Kind kind;
+    final List<MotionStep> route; // empty unless kind is ROUTE
+    // Recognizer confidence of the hypothesis times the share of its words we understood, 0..1.
+    final float confidence;
+    final String utterance;
+
+    VoiceCommand(Kind kind, List<MotionStep> route, float confidence, String utterance) {
+        this.kind = kind;
+        this.route = route;
+        this.confidence = confidence;
+        this.utterance = utterance;
+    }
+
+    @Override
+    public String toString() {
+        return kind + (kind == Kind.ROUTE ? " " + route : "") + " (" + confidence + ") \"" + utterance + '"';
+    }
+}
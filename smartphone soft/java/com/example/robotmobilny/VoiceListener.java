@@ -0,0 +1,145 @@
+package com.example.robotmobilny;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+// Continuous listening with the in-app SpeechRecognizer: no dialog, partial results go to
+// the keyword matcher right away and recognition starts again after every sentence.
+// Offline recognition is preferred, so commands need no network round trip.
+// Must be used from the main thread.
+class VoiceListener {
+
+    private final static String TAG = VoiceListener.class.getSimpleName();
+
+    interface Callback {
+        // Recognizer stopped for good, e.g. no permission or no recognition service.
+        void onListeningFailed(int error);
+    }
+
+    private final Context context;
+    private final KeywordMatcher matcher;
+    private final Callback callback;
+
+    private SpeechRecognizer recognizer;
+    private boolean listening;
+
+    private final RecognitionListener recognitionListener = new RecognitionListener() {
+        @Override
+        public void onReadyForSpeech(Bundle params) {
+        }
+
+        @Override
+        public void onBeginningOfSpeech() {
+            matcher.reset();
+        }
+
+        @Override
+        public void onRmsChanged(float rmsdB) {
+        }
+
+        @Override
+        public void onBufferReceived(byte[] buffer) {
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+        }
+
+        @Override
+        public void onError(int error) {
+            switch (error) {
+                case SpeechRecognizer.ERROR_NO_MATCH:
+                case SpeechRecognizer.ERROR_SPEECH_TIMEOUT:
+                case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
+                    // Silence or noise, keep listening.
+                    restart();
+                    break;
+                default:
+                    Log.w(TAG, "Recognition error " + error);
+                    stop();
+                    callback.onListeningFailed(error);
+            }
+        }
+
+        @Override
+        public void onResults(Bundle results) {
+            ArrayList<String> texts = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+            float[] confidences = results.getFloatArray(SpeechRecognizer.CONFIDENCE_SCORES);
+            if (texts != null) matcher.onFinal(texts, confidences);
+            restart();
+        }
+
+        @Override
+        public void onPartialResults(Bundle partialResults) {
+            ArrayList<String> texts = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+            if (texts != null && !texts.isEmpty()) matcher.onPartial(texts.get(0));
+        }
+
+        @Override
+        public void onEvent(int eventType, Bundle params) {
+        }
+    };
+
+    VoiceListener(Context context, KeywordMatcher matcher, Callback callback) {
+        this.context = context;
+        this.matcher = matcher;
+        this.callback = callback;
+    }
+
+    static boolean isAvailable(Context context) {
+        return SpeechRecognizer.isRecognitionAvailable(context);
+    }
+
+    boolean isListening() {
+        return listening;
+    }
+
+    void start() {
+        if (listening) return;
+        if (recognizer == null) {
+            recognizer = SpeechRecognizer.createSpeechRecognizer(context);
+            recognizer.setRecognitionListener(recognitionListener);
+        }
+        listening = true;
+        matcher.reset();
+        recognizer.startListening(recognizerIntent());
+    }
+
+    void stop() {
+        listening = false;
+        if (recognizer != null) recognizer.cancel();
+    }
+
+    void destroy() {
+        stop();
+        if (recognizer != null) {
+            recognizer.destroy();
+            recognizer = null;
+        }
+    }
+
+    private void restart() {
+        if (!listening) return;
+        matcher.reset();
+        recognizer.startListening(recognizerIntent());
+    }
+
+    private Intent recognizerIntent() {
+        Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault().toLanguageTag());
+        intent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, context.getPackageName());
+        intent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
+        intent.putExtra(RecognizerIntent.EXTRA_PREFER_OFFLINE, true);
+        intent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 3);
+        return intent;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.robotmobilny;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Compares a JMH run (-rf csv) with the stored baseline and exits with 1 if any result got
+// worse by more than the tolerance:
+//   throughput (ops/time unit) may not drop,
+//   average and 99th percentile of sample time may not grow,
+//   allocation per operation (gc.alloc.rate.norm, needs -prof gc) may not grow, small
+//   absolute differences are noise of the profiler and are ignored.
+// Results missing from either file are listed but do not fail the check.
+//
+//   java -cp benchmarks.jar com.example.robotmobilny.BaselineCheck baseline.csv current.csv [tolerance %]
+public class BaselineCheck {
+
+    static final double DEFAULT_TOLERANCE = 20; // %
+    static final double ALLOCATION_SLACK = 16;  // B/op
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BaselineCheck <baseline.csv> <current.csv> [tolerance %]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : baseline.entrySet()) {
+            Result before = entry.getValue();
+            Result after = current.get(entry.getKey());
+            if (after == null) {
+                System.out.println("MISSING    " + entry.getKey());
+                continue;
+            }
+            boolean worse = before.isThroughput()
+                    ? after.score < before.score * (1 - tolerance / 100)
+                    : after.score > before.score * (1 + tolerance / 100)
+                    && (!before.isAllocation() || after.score - before.score > ALLOCATION_SLACK);
+            if (worse) regressions++;
+            System.out.println(String.format(Locale.US, "%-10s %s  %.3f -> %.3f %s",
+                    worse ? "REGRESSION" : "ok", entry.getKey(), before.score, after.score, after.unit));
+        }
+        for (String key : current.keySet()) {
+            if (!baseline.containsKey(key)) System.out.println("NEW        " + key);
+        }
+
+        System.out.println(regressions + " regression(s), tolerance " + tolerance + " %");
+        if (regressions > 0) System.exit(1);
+    }
+
+    private static final class Result {
+        final double score;
+        final String unit;
+        final String name;
+
+        Result(String name, double score, String unit) {
+            this.name = name;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        boolean isThroughput() {
+            return unit.endsWith("/s") || unit.endsWith("/ms") || unit.endsWith("/us") || unit.endsWith("/ns");
+        }
+
+        boolean isAllocation() {
+            return name.contains("gc.alloc.rate.norm");
+        }
+    }
+
+    // Key is benchmark, mode and parameters. Only results the check looks at are kept.
+    private static Map<String, Result> read(String file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            List<String> header = parseCsvLine(in.readLine());
+            int benchmark = header.indexOf("Benchmark");
+            int mode = header.indexOf("Mode");
+            int score = header.indexOf("Score");
+            int unit = header.indexOf("Unit");
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> fields = parseCsvLine(line);
+                if (fields.size() != header.size()) continue;
+                String name = fields.get(benchmark);
+                if (!isChecked(name)) continue;
+
+                StringBuilder key = new StringBuilder(name).append(" [").append(fields.get(mode)).append(']');
+                for (int i = unit + 1; i < header.size(); i++) {
+                    if (!fields.get(i).isEmpty()) key.append(' ').append(fields.get(i));
+                }
+                try {
+                    results.put(key.toString(), new Result(name, Double.parseDouble(fields.get(score)), fields.get(unit)));
+                } catch (NumberFormatException e) {
+                    // NaN of a profiler that had nothing to measure
+                }
+            }
+        }
+        return results;
+    }
+
+    // Primary result, 99th percentile of sample time and allocation per operation.
+    private static boolean isChecked(String name) {
+        int secondary = name.indexOf(':');
+        if (secondary < 0) return true;
+        String label = name.substring(secondary + 1);
+        return label.equals("p0.99") || label.endsWith("gc.alloc.rate.norm");
+    }
+
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        if (line == null) return fields;
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.robotmobilny;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Spoken text turned into a command: a single sentence of each kind the parser meets and
+// the recognizer's list of hypotheses with confidences.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @State(Scope.Thread)
+    public static class Sentence {
+        @Param({
+                "prosto 50 cm",
+                "prosto 50 cm potem w prawo 20 cm i wolno do tyłu pół metra",
+                "sto dwadzieścia pięć centymetrów w lewo",
+                "Mobi, stój!",
+                "jaka jest dzisiaj pogoda w Krakowie"
+        })
+        public String utterance;
+    }
+
+    private final List<String> hypotheses = Arrays.asList(
+            "prosto 50 cm potem w prawo 20 cm",
+            "prosto 15 cm potem w prawo 20 cm",
+            "prosta 50 cm po tym prawo 20");
+    private final float[] confidences = {0.82f, 0.11f, 0.04f};
+
+    @Benchmark
+    public VoiceCommand parse(Sentence sentence) {
+        return CommandParser.parse(sentence.utterance);
+    }
+
+    @Benchmark
+    public VoiceCommand parseHypotheses() {
+        return CommandParser.parse(hypotheses, confidences);
+    }
+}
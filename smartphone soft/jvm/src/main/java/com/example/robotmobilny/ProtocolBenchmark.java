@@ -0,0 +1,127 @@
+package com.example.robotmobilny;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Phone side of the link: a route turned into writes for the negotiated protocol and MTU, and
+// notifications (text replies, ACKs, telemetry) decoded back. Run with -prof gc, decoding
+// telemetry is expected to allocate nothing.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    private final List<MotionStep> route = Arrays.asList(
+            new MotionStep('T', 50, 255), new MotionStep('R', 20, 140), new MotionStep('B', 120, 255));
+
+    private RobotProtocol binary;
+    private RobotProtocol ascii;
+    private MotionCodec codec;
+
+    private FrameReader reader;
+    private Telemetry telemetry;
+    private byte[] telemetryNotification;
+    private byte[] replyNotifications;
+    private byte[] ackNotification;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+
+        binary = new RobotProtocol();
+        binary.onLine("V1");
+        binary.setMtu(185);
+        ascii = new RobotProtocol();
+        codec = new MotionCodec();
+
+        telemetry = new Telemetry("SIM:01");
+        reader = new FrameReader(new FrameReader.Callback() {
+            @Override
+            public void onFrame(int opcode, int sequence, byte[] buffer, int payloadOffset, int payloadLength) {
+                if (opcode == MotionCodec.OP_TELEMETRY) {
+                    telemetry.decode(sequence, buffer, payloadOffset, payloadLength);
+                    ProtocolBenchmark.this.blackhole.consume(telemetry.heading);
+                } else {
+                    ProtocolBenchmark.this.blackhole.consume(buffer[payloadOffset]);
+                }
+            }
+
+            @Override
+            public void onLine(String line) {
+                ProtocolBenchmark.this.blackhole.consume(line);
+            }
+        });
+
+        telemetryNotification = frame(MotionCodec.OP_TELEMETRY, 7,
+                new byte[]{32, 0, -12, 0, 80, 0, (byte) 200, (byte) 190, 44, 1, 1, 2});
+        replyNotifications = "Towards 50\nFinish\n".getBytes(StandardCharsets.US_ASCII);
+        ackNotification = frame(MotionCodec.OP_ACK, 8, new byte[]{3, MotionCodec.ACK_STARTED, 1, 2, 3, 4});
+    }
+
+    // Route said again, frames come from the protocol's cache.
+    @Benchmark
+    public List<byte[]> encodeRoute() {
+        return binary.encodeRoute(route);
+    }
+
+    // Route never said before, encoded from scratch.
+    @Benchmark
+    public List<byte[]> encodeNewRoute() {
+        return binary.pack(Arrays.asList(codec.encodeRoute(route)));
+    }
+
+    @Benchmark
+    public List<byte[]> encodeAsciiRoute() {
+        return ascii.encodeRoute(route);
+    }
+
+    @Benchmark
+    public byte[] encodeStop() {
+        return binary.encodeStop();
+    }
+
+    @Benchmark
+    public void decodeTelemetry() {
+        reader.feed(telemetryNotification, 0, telemetryNotification.length);
+    }
+
+    @Benchmark
+    public void decodeReplies() {
+        reader.feed(replyNotifications, 0, replyNotifications.length);
+    }
+
+    @Benchmark
+    public void decodeAck() {
+        reader.feed(ackNotification, 0, ackNotification.length);
+    }
+
+    private static byte[] frame(int opcode, int sequence, byte[] payload) {
+        byte[] frame = new byte[MotionCodec.HEADER_SIZE + payload.length + MotionCodec.CRC_SIZE];
+        frame[0] = (byte) MotionCodec.SYNC;
+        frame[1] = (byte) MotionCodec.VERSION;
+        frame[2] = (byte) opcode;
+        frame[3] = (byte) sequence;
+        frame[4] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, MotionCodec.HEADER_SIZE, payload.length);
+        frame[frame.length - 1] = (byte) MotionCodec.crc8(frame, 1, frame.length - 2);
+        return frame;
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.robotmobilny;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandHistoryTest {
+
+    private static final List<MotionStep> ROUTE = Arrays.asList(new MotionStep('T', 50, 255), new MotionStep('R', 20, 255));
+
+    private final CommandHistory history = new CommandHistory();
+
+    private CommandHistory.Outcome newest() {
+        return history.entries().get(0).outcome;
+    }
+
+    @Test
+    public void routeIsFollowedFromStartToFinish() {
+        history.record(0, "prosto 50 cm w prawo 20 cm", ROUTE, Collections.singletonList("A"));
+        history.onReply("A", "Step 1/2");
+        history.onReply("A", "Towards 50");
+        assertEquals(CommandHistory.Outcome.STARTED, newest());
+        history.onReply("A", "Right 20");
+        history.onReply("A", "Finish");
+        assertEquals(CommandHistory.Outcome.FINISHED, newest());
+    }
+
+    @Test
+    public void finishOfPreviousRouteDoesNotEndTheNewOne() {
+        history.record(0, "prosto 50 cm", ROUTE, Collections.singletonList("A"));
+        history.onReply("A", "Towards 50");
+        history.record(1, "w prawo 20 cm", ROUTE, Collections.singletonList("A"));
+
+        // robot ends the route it was running before the new one reached it
+        assertFalse(history.onReply("A", "Finish"));
+        assertEquals(CommandHistory.Outcome.SENT, newest());
+        assertEquals(CommandHistory.Outcome.REPLACED, history.entries().get(1).outcome);
+    }
+
+    @Test
+    public void repliesOfOtherRobotsAreIgnored() {
+        history.record(0, "prosto 50 cm", ROUTE, Collections.singletonList("A"));
+        history.onReply("A", "Towards 50");
+
+        assertFalse(history.onReply("B", "Finish"));
+        assertFalse(history.onWriteFailed("B"));
+        assertEquals(CommandHistory.Outcome.STARTED, newest());
+    }
+
+    @Test
+    public void fleetCommandRunsUntilEveryRobotIsDone() {
+        history.record(0, "prosto 50 cm", ROUTE, Arrays.asList("A", "B"));
+        history.onReply("A", "Towards 50");
+        history.onReply("B", "Towards 50");
+        history.onReply("A", "Finish");
+        assertEquals(CommandHistory.Outcome.STARTED, newest());
+
+        history.onReply("B", "Obstacle 14");
+        history.onReply("B", "Finish");
+        assertEquals(CommandHistory.Outcome.OBSTACLE, newest());
+    }
+
+    @Test
+    public void stopIsFinishedByStoppedReply() {
+        history.record(0, "stop", Collections.emptyList(), Arrays.asList("A", "B"));
+        history.onReply("A", "Stopped");
+        assertEquals(CommandHistory.Outcome.SENT, newest());
+        history.onReply("B", "Stopped");
+        assertEquals(CommandHistory.Outcome.FINISHED, newest());
+    }
+
+    @Test
+    public void macroLongerThanACommandIsNotSaved() {
+        List<MotionStep> route = Collections.nCopies(CommandParser.MAX_STEPS + 1, new MotionStep('T', 10, 255));
+
+        assertFalse(history.saveMacro("patrol", route));
+        assertNull(history.macro("patrol"));
+        assertTrue(history.saveMacro("patrol", route.subList(0, CommandParser.MAX_STEPS)));
+    }
+
+    @Test
+    public void macroLongerThanACommandIsNotLoaded() throws IOException {
+        history.read(new StringReader("M\tpatrol\tT1@255 T2@255 T3@255 T4@255 T5@255 T6@255 T7@255 T8@255 T9@255\n"
+                + "M\tkwadrat\tT50@255 R50@255 R50@255 R50@255\n"));
+
+        assertNull(history.macro("patrol"));
+        assertEquals(4, history.macro("kwadrat").size());
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.robotmobilny;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CommandParserTest {
+
+    // Hypotheses with the share of words understood set by the test, see route().
+    private final Map<String, VoiceCommand> sentences = new HashMap<>();
+
+    // Every sentence of commands.tsv, all mismatches are reported at once.
+    @Test
+    public void corpus() throws IOException {
+        StringBuilder mismatches = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                CommandParserTest.class.getResourceAsStream("commands.tsv"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                int tab = line.indexOf('\t');
+                String utterance = line.substring(0, tab);
+                String expected = line.substring(tab + 1);
+                String actual = describe(CommandParser.parse(utterance));
+                if (!actual.equals(expected)) {
+                    mismatches.append('\n').append('"').append(utterance).append("\" expected ").append(expected)
+                            .append(", got ").append(actual);
+                }
+            }
+        }
+        assertTrue(mismatches.toString(), mismatches.length() == 0);
+    }
+
+    @Test
+    public void stopInAnyHypothesisWins() {
+        List<String> hypotheses = Arrays.asList("prosto 50 cm", "w lewo 20 cm", "stój");
+        VoiceCommand command = CommandParser.parse(hypotheses, new float[]{0.9f, 0.8f, 0.05f});
+
+        assertSame(VoiceCommand.Kind.STOP, command.kind);
+        assertEquals("stój", command.utterance);
+    }
+
+    @Test
+    public void routesAreRankedByConfidenceTimesCoverage() {
+        route("w lewo 20 cm", 0.5f);
+        route("prosto 50 cm", 1f);
+        List<String> hypotheses = Arrays.asList("w lewo 20 cm", "prosto 50 cm");
+
+        // 0.9 * 0.5 loses to 0.5 * 1
+        VoiceCommand command = parse(hypotheses, new float[]{0.9f, 0.5f});
+        assertEquals("T50@255", describe(command));
+        assertEquals(0.5f, command.confidence, 1e-6f);
+    }
+
+    @Test
+    public void rankStandsInForMissingConfidences() {
+        route("w lewo 20 cm", 0.6f);
+        route("prosto 50 cm", 1f);
+        List<String> hypotheses = Arrays.asList("w lewo 20 cm", "prosto 50 cm");
+
+        // 1 * 0.6 against 1/2 * 1
+        assertEquals("L20@255", describe(parse(hypotheses, null)));
+        // 0.2 * 0.6 against 1/2 * 1, the second one has no confidence of its own
+        assertEquals("T50@255", describe(parse(hypotheses, new float[]{0.2f})));
+        // zero means the recognizer did not say, rank again
+        assertEquals("L20@255", describe(parse(hypotheses, new float[]{0f, 0f})));
+    }
+
+    @Test
+    public void scoresBelowMinConfidenceAreNoise() {
+        route("prosto 50 cm", 0.5f);
+        List<String> hypotheses = Arrays.asList("prosto 50 cm");
+
+        assertSame(VoiceCommand.NONE, parse(hypotheses, new float[]{CommandParser.MIN_CONFIDENCE}));
+        assertEquals("T50@255", describe(parse(hypotheses, new float[]{2 * CommandParser.MIN_CONFIDENCE})));
+    }
+
+    // Parses 'text' for its route but lets it score 'coverage' in the hypothesis tests.
+    private void route(String text, float coverage) {
+        VoiceCommand parsed = CommandParser.parse(text);
+        sentences.put(text, new VoiceCommand(parsed.kind, parsed.route, coverage, text));
+    }
+
+    private VoiceCommand parse(List<String> hypotheses, float[] confidences) {
+        return CommandParser.parse(hypotheses, confidences, sentences::get);
+    }
+
+    // NONE, STOP or the steps of the route separated by spaces, as in commands.tsv.
+    static String describe(VoiceCommand command) {
+        if (command.kind != VoiceCommand.Kind.ROUTE) return command.kind.name();
+        StringBuilder steps = new StringBuilder();
+        for (MotionStep step : command.route) {
+            if (steps.length() > 0) steps.append(' ');
+            steps.append(step);
+        }
+        return steps.toString();
+    }
+}
@@ -0,0 +1,260 @@
+package com.example.robotmobilny;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+
+    private static final long TIMEOUT = 100;
+    private static final int RETRIES = 2;
+
+    // Stand-in for BluetoothGatt: remembers writes, refuses them while 'busy'.
+    private static final class FakeGatt implements CommandQueue.Writer {
+        final List<byte[]> writes = new ArrayList<>();
+        final List<Boolean> withResponse = new ArrayList<>();
+        int busyFor; // writes to refuse before accepting again
+
+        @Override
+        public boolean write(byte[] frame, boolean response) {
+            if (busyFor > 0) {
+                busyFor--;
+                return false;
+            }
+            writes.add(frame);
+            withResponse.add(response);
+            return true;
+        }
+    }
+
+    private final List<byte[]> issued = new ArrayList<>();
+    private final List<byte[]> written = new ArrayList<>();
+    private final List<byte[]> failed = new ArrayList<>();
+
+    private FakeScheduler scheduler;
+    private FakeGatt gatt;
+    private CommandQueue queue;
+
+    private final byte[] a = {1};
+    private final byte[] b = {2};
+    private final byte[] c = {3};
+
+    @Before
+    public void setUp() {
+        scheduler = new FakeScheduler();
+        gatt = new FakeGatt();
+        queue = new CommandQueue(gatt, scheduler, 4, TIMEOUT, RETRIES);
+        queue.setCallback(new CommandQueue.Callback() {
+            @Override
+            public void onCommandIssued(byte[] frame) {
+                issued.add(frame);
+            }
+
+            @Override
+            public void onCommandWritten(byte[] frame) {
+                written.add(frame);
+            }
+
+            @Override
+            public void onCommandFailed(byte[] frame) {
+                failed.add(frame);
+            }
+        });
+    }
+
+    @Test
+    public void nothingIsWrittenBeforeLinkIsReady() {
+        queue.offer(a);
+        assertTrue(gatt.writes.isEmpty());
+
+        queue.start();
+        assertEquals(Arrays.asList(a), gatt.writes);
+    }
+
+    @Test
+    public void writesOneAtATimeInOrder() {
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+        queue.offer(c);
+        assertEquals(Arrays.asList(a), gatt.writes);
+
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(a, b), gatt.writes);
+        queue.onWriteComplete(true);
+        queue.onWriteComplete(true);
+
+        assertEquals(Arrays.asList(a, b, c), gatt.writes);
+        assertEquals(Arrays.asList(a, b, c), written);
+        assertEquals(Arrays.asList(a, b, c), issued);
+        assertTrue(gatt.withResponse.stream().allMatch(response -> response));
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void failedWriteIsRetried() {
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+
+        queue.onWriteComplete(false);
+        assertEquals(Arrays.asList(a, a), gatt.writes);
+        queue.onWriteComplete(true);
+        queue.onWriteComplete(true);
+
+        assertEquals(Arrays.asList(a, a, b), gatt.writes);
+        assertEquals(Arrays.asList(a, b), written);
+        // retries are not issued again for latency metrics
+        assertEquals(Arrays.asList(a, b), issued);
+        assertTrue(failed.isEmpty());
+    }
+
+    @Test
+    public void timedOutWriteIsRetriedThenFailed() {
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+
+        scheduler.advance(TIMEOUT - 1);
+        assertEquals(1, gatt.writes.size());
+        scheduler.advance(1);
+        assertEquals(Arrays.asList(a, a), gatt.writes);
+
+        scheduler.advance(RETRIES * TIMEOUT);
+        assertEquals(Arrays.asList(a), failed);
+        // next command goes on
+        assertEquals(Arrays.asList(a, a, a, b), gatt.writes);
+
+        // the three attempts of a complete late, before b
+        for (int i = 0; i < 3; i++) queue.onWriteComplete(true);
+        assertTrue(written.isEmpty());
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(b), written);
+    }
+
+    @Test
+    public void lateCompletionAfterTimeoutIsIgnored() {
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+        scheduler.advance(TIMEOUT);
+        assertEquals(Arrays.asList(a, a), gatt.writes);
+
+        queue.onWriteComplete(true); // first attempt, not the retry
+        assertTrue(written.isEmpty());
+        assertEquals(Arrays.asList(a, a), gatt.writes);
+
+        queue.onWriteComplete(true); // the retry
+        assertEquals(Arrays.asList(a), written);
+        assertEquals(Arrays.asList(a, a, b), gatt.writes);
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(a, b), written);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void reconnectForgetsCompletionsOfTheOldLink() {
+        queue.start();
+        queue.offer(a);
+        scheduler.advance(TIMEOUT);
+        queue.stop();
+
+        queue.start();
+        queue.offer(b);
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(b), written);
+    }
+
+    @Test
+    public void busyStackIsRetriedShortly() {
+        gatt.busyFor = 3;
+        queue.start();
+        queue.offer(a);
+        assertTrue(gatt.writes.isEmpty());
+
+        scheduler.advance(30);
+        assertEquals(Arrays.asList(a), gatt.writes);
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(a), written);
+    }
+
+    @Test
+    public void stackBusyForLongerThanTimeoutFailsCommand() {
+        gatt.busyFor = Integer.MAX_VALUE;
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+
+        scheduler.advance(TIMEOUT + 20);
+        assertEquals(Arrays.asList(a), failed);
+
+        gatt.busyFor = 0;
+        scheduler.advance(TIMEOUT);
+        assertEquals(Arrays.asList(b), gatt.writes);
+    }
+
+    @Test
+    public void pipelineDepthLimitsWritesWithoutResponse() {
+        queue.setWriteWithoutResponse(true, 2);
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+        queue.offer(c);
+
+        assertEquals(Arrays.asList(a, b), gatt.writes);
+        assertFalse(gatt.withResponse.get(0));
+
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(a, b, c), gatt.writes);
+        queue.onWriteComplete(true);
+        queue.onWriteComplete(true);
+        assertEquals(Arrays.asList(a, b, c), written);
+    }
+
+    @Test
+    public void pipelineDepthIsOneWithResponse() {
+        queue.setWriteWithoutResponse(true, 3);
+        queue.setWriteWithoutResponse(false, 3);
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+
+        assertEquals(Arrays.asList(a), gatt.writes);
+        assertTrue(gatt.withResponse.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pipelineDepthMustBePositive() {
+        queue.setWriteWithoutResponse(true, 0);
+    }
+
+    @Test
+    public void fullQueueRefusesCommands() {
+        for (int i = 0; i < 4; i++) assertTrue(queue.offer(new byte[]{(byte) i}));
+        assertFalse(queue.offer(a));
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void stopFailsEverythingNotConfirmed() {
+        queue.start();
+        queue.offer(a);
+        queue.offer(b);
+        queue.stop();
+
+        assertEquals(Arrays.asList(a, b), failed);
+        assertTrue(queue.isIdle());
+        // timeout of the write in flight is gone too
+        scheduler.advance(10 * TIMEOUT);
+        assertEquals(1, gatt.writes.size());
+        assertSame(a, gatt.writes.get(0));
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.robotmobilny;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionManagerTest {
+
+    private static final String ADDRESS = "00:15:86:13:DF:F3";
+
+    // Simulated BluetoothGatt: answers come only when the test calls the manager back.
+    private static final class SimulatedAdapter implements ConnectionManager.Adapter {
+        final List<String> calls = new ArrayList<>();
+        boolean cachedServices;
+        boolean refuseConnect;
+        boolean refuseMtu;
+
+        @Override
+        public boolean connect(String address) {
+            calls.add("connect " + address);
+            return !refuseConnect;
+        }
+
+        @Override
+        public boolean hasCachedServices() {
+            return cachedServices;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            calls.add("discover");
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            calls.add("mtu " + mtu);
+            return !refuseMtu;
+        }
+
+        @Override
+        public void disconnect() {
+            calls.add("disconnect");
+        }
+
+        int count(String call) {
+            int count = 0;
+            for (String c : calls) if (c.equals(call)) count++;
+            return count;
+        }
+    }
+
+    private final List<String> events = new ArrayList<>();
+    private FakeScheduler scheduler;
+    private SimulatedAdapter adapter;
+    private ConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        scheduler = new FakeScheduler();
+        adapter = new SimulatedAdapter();
+        manager = new ConnectionManager(adapter, scheduler, new ConnectionManager.Callback() {
+            @Override
+            public void onReady(boolean fromCache) {
+                events.add(fromCache ? "ready cached" : "ready");
+            }
+
+            @Override
+            public void onLost() {
+                events.add("lost");
+            }
+        });
+    }
+
+    private void bringUp() {
+        manager.connect(ADDRESS);
+        manager.onConnected();
+        if (manager.getState() == ConnectionManager.State.DISCOVERING) manager.onServicesDiscovered(true);
+        manager.onMtuChanged();
+    }
+
+    @Test
+    public void firstConnectionDiscoversServicesAndTunesMtu() {
+        manager.connect(ADDRESS);
+        assertEquals(ConnectionManager.State.CONNECTING, manager.getState());
+        manager.onConnected();
+        assertEquals(ConnectionManager.State.DISCOVERING, manager.getState());
+        manager.onServicesDiscovered(true);
+        assertEquals(ConnectionManager.State.TUNING, manager.getState());
+        manager.onMtuChanged();
+
+        assertEquals(ConnectionManager.State.READY, manager.getState());
+        assertEquals(Arrays.asList("connect " + ADDRESS, "discover", "mtu " + ConnectionManager.REQUESTED_MTU),
+                adapter.calls);
+        assertEquals(Arrays.asList("ready"), events);
+    }
+
+    @Test
+    public void cachedServicesSkipDiscovery() {
+        adapter.cachedServices = true;
+        bringUp();
+
+        assertEquals(0, adapter.count("discover"));
+        assertEquals(Arrays.asList("ready cached"), events);
+    }
+
+    @Test
+    public void linkIsUsedUntunedWhenRobotDoesNotAnswerMtu() {
+        adapter.cachedServices = true;
+        manager.connect(ADDRESS);
+        manager.onConnected();
+        scheduler.advance(ConnectionManager.TUNING_TIMEOUT);
+
+        assertEquals(ConnectionManager.State.READY, manager.getState());
+        assertEquals(Arrays.asList("ready cached"), events);
+    }
+
+    @Test
+    public void refusedMtuRequestGoesStraightToReady() {
+        adapter.refuseMtu = true;
+        manager.connect(ADDRESS);
+        manager.onConnected();
+        manager.onServicesDiscovered(true);
+
+        assertEquals(ConnectionManager.State.READY, manager.getState());
+    }
+
+    @Test
+    public void lostLinkReconnectsAfterBackoff() {
+        bringUp();
+        manager.onDisconnected();
+
+        assertEquals(Arrays.asList("ready", "lost"), events);
+        assertEquals(ConnectionManager.State.BACKOFF, manager.getState());
+        scheduler.advance(ConnectionManager.INITIAL_BACKOFF - 1);
+        assertEquals(1, adapter.count("connect " + ADDRESS));
+        scheduler.advance(1);
+        assertEquals(2, adapter.count("connect " + ADDRESS));
+        assertEquals(ConnectionManager.State.CONNECTING, manager.getState());
+    }
+
+    @Test
+    public void backoffDoublesUpToMaximum() {
+        adapter.refuseConnect = true;
+        manager.connect(ADDRESS);
+
+        List<Long> delays = new ArrayList<>();
+        long last = scheduler.now();
+        for (int attempts = 1; delays.size() < 9; ) {
+            scheduler.advance(1);
+            if (adapter.count("connect " + ADDRESS) > attempts) {
+                attempts++;
+                delays.add(scheduler.now() - last);
+                last = scheduler.now();
+            }
+        }
+        assertEquals(Arrays.asList(250L, 500L, 1000L, 2000L, 4000L, 8000L, 16000L, 16000L, 16000L), delays);
+    }
+
+    @Test
+    public void backoffStartsOverAfterSuccessfulConnection() {
+        adapter.refuseConnect = true;
+        manager.connect(ADDRESS);
+        scheduler.advance(250 + 500 + 1000);
+        assertEquals(4, adapter.count("connect " + ADDRESS));
+
+        adapter.refuseConnect = false;
+        scheduler.advance(2000);
+        manager.onConnected();
+        manager.onServicesDiscovered(true);
+        manager.onMtuChanged();
+        manager.onDisconnected();
+
+        scheduler.advance(ConnectionManager.INITIAL_BACKOFF);
+        assertEquals(6, adapter.count("connect " + ADDRESS));
+    }
+
+    @Test
+    public void connectTimeoutDisconnectsAndRetries() {
+        manager.connect(ADDRESS);
+        scheduler.advance(ConnectionManager.CONNECT_TIMEOUT);
+
+        assertEquals(1, adapter.count("disconnect"));
+        assertEquals(ConnectionManager.State.BACKOFF, manager.getState());
+        scheduler.advance(ConnectionManager.INITIAL_BACKOFF);
+        assertEquals(2, adapter.count("connect " + ADDRESS));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void failedDiscoveryReconnects() {
+        manager.connect(ADDRESS);
+        manager.onConnected();
+        manager.onServicesDiscovered(false);
+
+        assertEquals(ConnectionManager.State.BACKOFF, manager.getState());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void staleCachedHandlesAreDiscoveredAgain() {
+        adapter.cachedServices = true;
+        bringUp();
+        manager.onServicesInvalid();
+
+        assertEquals(ConnectionManager.State.DISCOVERING, manager.getState());
+        manager.onServicesDiscovered(true);
+        manager.onMtuChanged();
+        assertEquals(Arrays.asList("ready cached", "lost", "ready"), events);
+    }
+
+    @Test
+    public void failedRediscoveryIsNotLostTwice() {
+        adapter.cachedServices = true;
+        bringUp();
+        manager.onServicesInvalid();
+        manager.onServicesInvalid(); // not ready any more, nothing to lose
+        manager.onServicesDiscovered(false);
+        manager.onDisconnected();
+
+        assertEquals(Arrays.asList("ready cached", "lost"), events);
+        assertEquals(ConnectionManager.State.BACKOFF, manager.getState());
+    }
+
+    @Test
+    public void closeStopsReconnecting() {
+        bringUp();
+        manager.onDisconnected();
+        manager.close();
+
+        scheduler.advance(ConnectionManager.MAX_BACKOFF);
+        assertEquals(1, adapter.count("connect " + ADDRESS));
+        assertEquals(ConnectionManager.State.IDLE, manager.getState());
+    }
+}
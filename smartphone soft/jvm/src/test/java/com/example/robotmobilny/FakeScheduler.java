@@ -0,0 +1,57 @@
+package com.example.robotmobilny;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+// Virtual clock behind the Scheduler seam. Tasks run only when a test advances time, in order
+// of their due time and, at the same time, in the order they were scheduled.
+class FakeScheduler implements Scheduler {
+
+    private static final class Task {
+        final long time;
+        final long order;
+        final Runnable runnable;
+
+        Task(long time, long order, Runnable runnable) {
+            this.time = time;
+            this.order = order;
+            this.runnable = runnable;
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>((a, b) ->
+            a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.order, b.order));
+    private long now;
+    private long order;
+
+    @Override
+    public synchronized void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Task(now + delayMillis, order++, task));
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+        for (Iterator<Task> it = tasks.iterator(); it.hasNext(); ) {
+            if (it.next().runnable == task) it.remove();
+        }
+    }
+
+    long now() {
+        return now;
+    }
+
+    // Runs everything due within 'millis', tasks may schedule more.
+    void advance(long millis) {
+        long end = now + millis;
+        while (true) {
+            Task task;
+            synchronized (this) {
+                if (tasks.isEmpty() || tasks.peek().time > end) break;
+                task = tasks.poll();
+                now = task.time;
+            }
+            task.runnable.run();
+        }
+        now = end;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.robotmobilny;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerRegistryTest {
+
+    private static final Executor DIRECT = Runnable::run;
+
+    // Writes every event down as text.
+    private static final class Recorder implements RobotListener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onConnectionStateChanged(String address, boolean connected) {
+            events.add(address + (connected ? " connected" : " disconnected"));
+        }
+
+        @Override
+        public void onMessage(String address, String message) {
+            events.add(address + " " + message);
+        }
+
+        @Override
+        public void onWriteResult(String address, byte[] frame, boolean success) {
+            events.add(address + " write " + frame.length + (success ? " ok" : " failed"));
+        }
+
+        @Override
+        public void onStepResult(String address, int step, int distanceError, int headingError) {
+            events.add(address + " step " + step + " " + distanceError + " " + headingError);
+        }
+
+        @Override
+        public void onRouteTooLong(int steps) {
+            events.add("route too long " + steps);
+        }
+
+        @Override
+        public void onServiceStopping() {
+            events.add("service stopping");
+        }
+    }
+
+    private final ListenerRegistry registry = new ListenerRegistry();
+
+    @Test
+    public void everyEventReachesEveryListener() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        registry.add(first, DIRECT, false);
+        registry.add(second, DIRECT, false);
+
+        registry.dispatchConnectionState("A", true);
+        registry.dispatchMessage("A", "Towards 50");
+        registry.dispatchWriteResult("A", new byte[3], false);
+        registry.dispatchStepResult("A", 1, -12, 3);
+        registry.dispatchRouteTooLong(9);
+        registry.dispatchServiceStopping();
+
+        List<String> expected = Arrays.asList("A connected", "A Towards 50", "A write 3 failed", "A step 1 -12 3",
+                "route too long 9", "service stopping");
+        assertEquals(expected, first.events);
+        assertEquals(expected, second.events);
+    }
+
+    @Test
+    public void eventsRunOnListenersExecutor() {
+        Queue<Runnable> posted = new ArrayDeque<>();
+        Recorder recorder = new Recorder();
+        registry.add(recorder, posted::add, false);
+
+        registry.dispatchMessage("A", "Finish");
+        assertTrue(recorder.events.isEmpty());
+
+        while (!posted.isEmpty()) posted.poll().run();
+        assertEquals(Collections.singletonList("A Finish"), recorder.events);
+    }
+
+    @Test
+    public void replayGivesLatestStateOfEveryRobot() {
+        registry.dispatchConnectionState("A", true);
+        registry.dispatchConnectionState("B", true);
+        registry.dispatchConnectionState("B", false);
+
+        Recorder recorder = new Recorder();
+        registry.add(recorder, DIRECT, true);
+
+        assertEquals(2, recorder.events.size());
+        assertTrue(recorder.events.containsAll(Arrays.asList("A connected", "B disconnected")));
+    }
+
+    // Screen recreated after a rotation must not show the last reply again.
+    @Test
+    public void replayLeavesOutOldMessages() {
+        registry.dispatchConnectionState("A", true);
+        registry.dispatchMessage("A", "Obstacle");
+        registry.dispatchMessage("A", "Finish");
+
+        Recorder recorder = new Recorder();
+        registry.add(recorder, DIRECT, true);
+        assertEquals(Collections.singletonList("A connected"), recorder.events);
+
+        registry.dispatchMessage("A", "Towards 50");
+        assertEquals(Arrays.asList("A connected", "A Towards 50"), recorder.events);
+    }
+
+    @Test
+    public void withoutReplayOnlyNewEventsArrive() {
+        registry.dispatchConnectionState("A", true);
+
+        Recorder recorder = new Recorder();
+        registry.add(recorder, DIRECT, false);
+        assertTrue(recorder.events.isEmpty());
+
+        registry.dispatchMessage("A", "Finish");
+        assertEquals(Collections.singletonList("A Finish"), recorder.events);
+    }
+
+    @Test
+    public void removedListenerGetsNothing() {
+        Recorder removed = new Recorder();
+        Recorder kept = new Recorder();
+        registry.add(removed, DIRECT, false);
+        registry.add(kept, DIRECT, false);
+        registry.remove(removed);
+
+        registry.dispatchMessage("A", "Finish");
+        assertTrue(removed.events.isEmpty());
+        assertEquals(1, kept.events.size());
+    }
+}
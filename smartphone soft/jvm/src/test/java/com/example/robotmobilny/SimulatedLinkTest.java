@@ -0,0 +1,236 @@
+package com.example.robotmobilny;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Whole phone side of the link (RobotSession: queue, connection manager, protocol, frame
+// reader) against the firmware simulator, on a virtual clock. Latency, throughput and loss
+// are measured in virtual milliseconds, so the numbers are exact and the runs repeatable.
+public class SimulatedLinkTest {
+
+    private static final String ADDRESS = "SIM:01";
+
+    private FakeScheduler scheduler;
+    private SimulatedTransport transport;
+    private RobotSession session;
+
+    // Virtual time of every event, "<millis> <event>".
+    private final List<String> events = new ArrayList<>();
+    private int writesConfirmed;
+    private int writesFailed;
+    private int telemetryRate;
+    private final List<Integer> leftPwm = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new FakeScheduler();
+        transport = new SimulatedTransport(scheduler, 42);
+        ListenerRegistry listeners = new ListenerRegistry();
+        listeners.add(new RobotListener() {
+            @Override
+            public void onConnectionStateChanged(String address, boolean connected) {
+                events.add(scheduler.now() + (connected ? " connected" : " disconnected"));
+            }
+
+            @Override
+            public void onMessage(String address, String message) {
+                events.add(scheduler.now() + " " + message);
+            }
+
+            @Override
+            public void onWriteResult(String address, byte[] frame, boolean success) {
+                if (success) {
+                    writesConfirmed++;
+                } else {
+                    writesFailed++;
+                }
+            }
+        }, Runnable::run, false);
+
+        LatencyMetrics metrics = new LatencyMetrics();
+        session = new RobotSession(ADDRESS, transport, scheduler, new RobotSession.Host() {
+            @Override
+            public int getTelemetryRate() {
+                return telemetryRate;
+            }
+
+            @Override
+            public int getMaxAcceleration() {
+                return 0;
+            }
+
+            @Override
+            public int getMaxSpeed() {
+                return 0;
+            }
+
+            @Override
+            public void dispatchTelemetry(Telemetry telemetry) {
+                leftPwm.add(telemetry.leftPwm);
+            }
+
+            @Override
+            public LatencyMetrics getMetrics() {
+                return metrics;
+            }
+        }, listeners);
+    }
+
+    private void connect() {
+        session.connect();
+        scheduler.advance(1000);
+        writesConfirmed = 0;
+        events.clear();
+    }
+
+    // Virtual time of the first event starting with 'prefix' at or after 'since', -1 if none.
+    private long timeOf(String prefix, long since) {
+        for (String event : events) {
+            long time = Long.parseLong(event.substring(0, event.indexOf(' ')));
+            if (time >= since && event.substring(event.indexOf(' ') + 1).startsWith(prefix)) return time;
+        }
+        return -1;
+    }
+
+    private long commandToStart(long linkDelay) {
+        transport.setLinkDelay(linkDelay);
+        connect();
+        long sent = scheduler.now();
+        session.offer(session.encodeRoute(Collections.singletonList(new MotionStep('T', 10, 255))));
+        scheduler.advance(5000);
+        return timeOf("Towards", sent) - sent;
+    }
+
+    @Test
+    public void robotAnswersVersionQueryWithBinaryProtocol() {
+        session.connect();
+        scheduler.advance(1000);
+
+        assertTrue(events.get(0).endsWith(" connected"));
+        assertEquals(MotionCodec.VERSION, session.getProtocolVersion());
+        assertEquals(SimulatedTransport.MAX_MTU, session.getLinkStats().getMtu());
+    }
+
+    @Test
+    public void routeIsDrivenStepByStep() {
+        connect();
+        session.offer(session.encodeRoute(Arrays.asList(new MotionStep('T', 20, 255), new MotionStep('L', 10, 255))));
+        scheduler.advance(20000);
+
+        long towards = timeOf("Towards 20", 0);
+        long left = timeOf("Left 10", 0);
+        long finish = timeOf("Finish", 0);
+        assertTrue(towards >= 0 && towards < left && left < finish);
+        // 20 cm at up to 16 cm/s with ramps takes well over a second
+        assertTrue(left - towards > 1250);
+        assertEquals(0, writesFailed);
+    }
+
+    @Test
+    public void latencyFollowsInjectedLinkDelay() {
+        long fast = commandToStart(15);
+        setUp();
+        long slow = commandToStart(100);
+
+        assertTrue("command to start " + fast + " ms", fast > 0 && fast < 200);
+        // command travels to the robot and its reply back, both slower
+        assertTrue("slow " + slow + " fast " + fast, slow - fast >= 2 * (100 - 15));
+    }
+
+    @Test
+    public void obstacleStopsTheStep() {
+        connect();
+        transport.getRobot().setObstacleDistance(30);
+        session.offer(session.encodeRoute(Collections.singletonList(new MotionStep('T', 50, 255))));
+        scheduler.advance(20000);
+
+        assertTrue(timeOf("Obstacle", 0) >= 0);
+        assertTrue(timeOf("Finish", 0) >= timeOf("Obstacle", 0));
+    }
+
+    // New route slower than the drive it replaces: robot slows down to the new speed and stays
+    // there, it does not brake below it only to speed up again.
+    @Test
+    public void slowerRouteSettlesAtItsSpeed() {
+        telemetryRate = RobotSimulator.MAX_TELEMETRY_RATE;
+        connect();
+        session.offer(session.encodeRoute(Collections.singletonList(new MotionStep('T', 100, 255))));
+        scheduler.advance(3000);
+        assertEquals(255, (int) leftPwm.get(leftPwm.size() - 1));
+
+        leftPwm.clear();
+        session.offer(session.encodeRoute(Collections.singletonList(new MotionStep('T', 60, 100))));
+        scheduler.advance(3000);
+
+        assertEquals(100, (int) Collections.min(leftPwm));
+        assertEquals(100, (int) leftPwm.get(leftPwm.size() - 1));
+    }
+
+    @Test
+    public void stepWithoutSpeedIsRefused() {
+        connect();
+        session.offer(session.encodeRoute(Arrays.asList(new MotionStep('T', 20, 255), new MotionStep('L', 10, 0))));
+        scheduler.advance(20000);
+
+        assertEquals(-1, timeOf("Towards", 0));
+        assertFalse(transport.getRobot().isMoving());
+    }
+
+    @Test
+    public void lostWritesAreRetriedUntilDelivered() {
+        connect();
+        transport.setLossRate(0.3);
+        for (int i = 0; i < 20; i++) {
+            session.offer(session.encodeRoute(Collections.singletonList(new MotionStep('R', 5 + i, 255))));
+        }
+        scheduler.advance(60000);
+
+        assertTrue(transport.getLostWrites() > 0);
+        assertEquals(20, writesConfirmed + writesFailed);
+        // three retries make a write fail for good only rarely
+        assertTrue("failed " + writesFailed, writesFailed <= 1);
+    }
+
+    @Test
+    public void pipelinedWritesWithoutResponseRaiseThroughput() {
+        connect();
+        long withResponse = timeToWrite(20);
+        session.setWriteWithoutResponse(true, 4);
+        long withoutResponse = timeToWrite(20);
+
+        assertTrue("with response " + withResponse + " ms, without " + withoutResponse + " ms",
+                withoutResponse * 4 < withResponse);
+    }
+
+    // Virtual time until 'count' sonar commands are confirmed.
+    private long timeToWrite(int count) {
+        writesConfirmed = 0;
+        long start = scheduler.now();
+        for (int i = 0; i < count; i++) session.offer(session.encodeSonar(50));
+        while (writesConfirmed < count) scheduler.advance(1);
+        return scheduler.now() - start;
+    }
+
+    @Test
+    public void droppedLinkComesBackByItself() {
+        connect();
+        transport.dropLink();
+        long dropped = scheduler.now();
+        scheduler.advance(2000);
+
+        assertEquals(dropped + " disconnected", events.get(0));
+        long reconnected = timeOf("connected", dropped + 1);
+        assertTrue(reconnected > dropped);
+        assertTrue(reconnected - dropped <= ConnectionManager.INITIAL_BACKOFF + 500);
+        assertEquals(MotionCodec.VERSION, session.getProtocolVersion());
+    }
+}